@@ -0,0 +1,95 @@
+package benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.concurrent.TimeUnit;
+import message.Message;
+import message.ResponseRequest;
+import models.User;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import service.BinaryCodec;
+
+/**
+ * Measures writing a request and reading it back with the two codecs of the
+ * server. The serialized one opens new object streams every time, as a
+ * client does with one request per connection.
+ *
+ * @author Irati
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Thread)
+public class CodecBenchmark {
+
+    /**
+     * The request: a sign up has every field of the user, a sign in only
+     * the login and the password.
+     */
+    @Param({"SIGNUP", "SIGNIN"})
+    public Message message;
+
+    private ResponseRequest request;
+
+    /**
+     * Creates the request.
+     */
+    @Setup
+    public void setUp() {
+        User user;
+        if (message == Message.SIGNUP) {
+            user = Fixtures.user("benchmark@example.com", "abcd*1234");
+        } else {
+            user = new User();
+            user.setEmail("benchmark@example.com");
+            user.setPassword("abcd*1234");
+        }
+        request = new ResponseRequest(user, message);
+    }
+
+    /**
+     * Java serialization, the codec of the clients that send a stream
+     * header.
+     *
+     * @return the request read back.
+     * @throws IOException If the request cannot be written or read.
+     * @throws ClassNotFoundException If a class of the request is missing.
+     */
+    @Benchmark
+    public ResponseRequest serial() throws IOException, ClassNotFoundException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(512);
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(request);
+        }
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+            return (ResponseRequest) in.readObject();
+        }
+    }
+
+    /**
+     * The length prefixed frames of BinaryCodec.
+     *
+     * @return the request read back.
+     * @throws IOException If the request cannot be written or read.
+     */
+    @Benchmark
+    public ResponseRequest binary() throws IOException {
+        byte[] frame = BinaryCodec.encode(request);
+        return BinaryCodec.decode(frame, 4, frame.length - 4);
+    }
+}
@@ -0,0 +1,113 @@
+package benchmarks;
+
+import dataAccess.PoolFactory;
+import dataAccess.SignableFactory;
+import exceptions.EmailExistsException;
+import exceptions.LoginCredentialException;
+import exceptions.ServerErrorException;
+import interfaces.Signable;
+import io.zonky.test.db.postgres.embedded.EmbeddedPostgres;
+import java.net.URI;
+import java.sql.Connection;
+import java.sql.Statement;
+import java.util.ResourceBundle;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import models.User;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the sign ins and sign ups of the DAO against a PostgreSQL started
+ * by the benchmark on the port of URL, with the tables of schema.sql. The
+ * binaries of PostgreSQL come in the embedded-postgres dependency, so nothing
+ * has to be installed. The passwords are hashed with the PASSWORD_ROUNDS of
+ * the configuration file of the benchmarks, lower than the one of the server.
+ *
+ * @author Irati
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class DaoBenchmark {
+
+    private static final String LOGIN = "benchmark@example.com";
+    private static final String PASSWORD = "abcd*1234";
+    private EmbeddedPostgres database;
+    private Signable dao;
+    /**
+     * Numbers the logins of the sign ups so every one is new.
+     */
+    private final AtomicLong next = new AtomicLong();
+
+    /**
+     * Starts the database, creates the tables and signs up the user that
+     * signs in.
+     *
+     * @throws Exception If the database cannot be started or the user
+     * created.
+     */
+    @Setup
+    public void setUp() throws Exception {
+        Fixtures.quietLog();
+        String url = ResourceBundle.getBundle("config.config").getString("URL");
+        int port = URI.create(url.substring("jdbc:".length())).getPort();
+        database = EmbeddedPostgres.builder().setPort(port).start();
+        try (Connection con = database.getPostgresDatabase().getConnection();
+                Statement statement = con.createStatement()) {
+            statement.execute(Fixtures.resource("/schema.sql"));
+        }
+        dao = SignableFactory.getSignable();
+        dao.signUp(Fixtures.user(LOGIN, PASSWORD));
+    }
+
+    /**
+     * Closes the pools and stops the database.
+     *
+     * @throws Exception If the database cannot be stopped.
+     */
+    @TearDown
+    public void tearDown() throws Exception {
+        PoolFactory.closeAllPools();
+        database.close();
+    }
+
+    /**
+     * Signs in the user, with the profile read if SIGNIN_PROFILE is true.
+     *
+     * @return the user read.
+     * @throws ServerErrorException If the database fails.
+     * @throws LoginCredentialException If the credentials are wrong.
+     */
+    @Benchmark
+    public User signIn() throws ServerErrorException, LoginCredentialException {
+        User user = new User();
+        user.setEmail(LOGIN);
+        user.setPassword(PASSWORD);
+        return dao.signIn(user);
+    }
+
+    /**
+     * Signs up a new user.
+     *
+     * @return the user created.
+     * @throws ServerErrorException If the database fails.
+     * @throws EmailExistsException If the login already exists.
+     */
+    @Benchmark
+    public User signUp() throws ServerErrorException, EmailExistsException {
+        return dao.signUp(Fixtures.user("user" + next.incrementAndGet() + "@example.com", PASSWORD));
+    }
+}
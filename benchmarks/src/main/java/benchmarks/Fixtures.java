@@ -0,0 +1,124 @@
+package benchmarks;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.StringReader;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.util.PropertyResourceBundle;
+import java.util.ResourceBundle;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import models.User;
+
+/**
+ * What the benchmarks share: the users they send, the configuration of their
+ * pools and the connections that do not reach a database.
+ *
+ * @author Irati
+ */
+class Fixtures {
+
+    private Fixtures() {
+    }
+
+    /**
+     * Only lets the warnings through, the pool and the DAO log every request
+     * and writing it would be measured instead of them.
+     */
+    static void quietLog() {
+        Logger.getLogger("").setLevel(Level.WARNING);
+    }
+
+    /**
+     * Creates a configuration file from its lines.
+     *
+     * @param lines The keys and values, one per line.
+     * @return the configuration file.
+     * @throws IOException If the lines cannot be read.
+     */
+    static ResourceBundle config(String lines) throws IOException {
+        return new PropertyResourceBundle(new StringReader(lines));
+    }
+
+    /**
+     * Opens a connection that does nothing: it is never closed, it is in auto
+     * commit and every other call returns the default value of its type.
+     *
+     * @return the connection.
+     */
+    static Connection fakeConnection() {
+        return (Connection) Proxy.newProxyInstance(Fixtures.class.getClassLoader(),
+                new Class<?>[]{Connection.class}, (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "getAutoCommit":
+                        case "isValid":
+                            return true;
+                        case "hashCode":
+                            return System.identityHashCode(proxy);
+                        case "equals":
+                            return proxy == args[0];
+                        case "toString":
+                            return "fake connection";
+                        default:
+                            return defaultValue(method.getReturnType());
+                    }
+                });
+    }
+
+    private static Object defaultValue(Class<?> type) {
+        if (type == boolean.class) {
+            return false;
+        }
+        if (type == int.class) {
+            return 0;
+        }
+        if (type == long.class) {
+            return 0L;
+        }
+        return null;
+    }
+
+    /**
+     * Creates a user with every field of a sign up.
+     *
+     * @param email The login of the user.
+     * @param password The password of the user.
+     * @return the user.
+     */
+    static User user(String email, String password) {
+        User user = new User();
+        user.setEmail(email);
+        user.setPassword(password);
+        user.setName("Benchmark User");
+        user.setStreet("Calle Mayor 1");
+        user.setZip("48001");
+        user.setCity("Bilbao");
+        return user;
+    }
+
+    /**
+     * Reads a text file of the classpath.
+     *
+     * @param name The name of the file.
+     * @return the text.
+     * @throws IOException If the file cannot be read.
+     */
+    static String resource(String name) throws IOException {
+        InputStream in = Fixtures.class.getResourceAsStream(name);
+        if (in == null) {
+            throw new IOException(name + " not found.");
+        }
+        StringBuilder text = new StringBuilder();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                text.append(line).append('\n');
+            }
+        }
+        return text.toString();
+    }
+}
@@ -0,0 +1,149 @@
+package benchmarks;
+
+import dataAccess.ConnectionSource;
+import dataAccess.Pool;
+import dataAccess.PoolCreatable;
+import dataAccess.StripedPool;
+import exceptions.ServerErrorException;
+import java.io.IOException;
+import java.sql.Connection;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures taking a connection from a pool and returning it, with 1, 8 and 64
+ * threads sharing the pool. With more threads than POOL_MAX_SIZE they wait
+ * for each other, as the workers do when the database is slow. The
+ * connections do not reach a database, so only the pool is measured. A
+ * borrow that waits longer than POOL_BORROW_TIMEOUT is counted in timeouts
+ * instead of failing the run.
+ *
+ * @author Irati
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(2)
+@State(Scope.Benchmark)
+public class PoolBenchmark {
+
+    /**
+     * The pool of POOL_MODE, LOCKED or STRIPED.
+     */
+    @Param({"LOCKED", "STRIPED"})
+    public String poolMode;
+
+    /**
+     * POOL_MAX_SIZE.
+     */
+    @Param({"20"})
+    public int poolSize;
+
+    /**
+     * LEAK_DETECTION_THRESHOLD, every borrow keeps its stack when it is not 0.
+     */
+    @Param({"0"})
+    public long leakDetection;
+
+    private PoolCreatable pool;
+
+    /**
+     * The borrows of a thread that have timed out.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Timeouts {
+
+        /**
+         * Borrows that have timed out.
+         */
+        public long timeouts;
+    }
+
+    /**
+     * Creates the pool.
+     *
+     * @throws IOException If the configuration cannot be read.
+     */
+    @Setup
+    public void setUp() throws IOException {
+        Fixtures.quietLog();
+        ConnectionSource source = Fixtures::fakeConnection;
+        String lines = "POOL_MAX_SIZE = " + poolSize + "\nPOOL_MIN_SIZE = 0\n"
+                + "LEAK_DETECTION_THRESHOLD = " + leakDetection + "\n";
+        if (poolMode.equals("STRIPED")) {
+            pool = new StripedPool("benchmark", source, Fixtures.config(lines));
+        } else {
+            pool = new Pool("benchmark", source, Fixtures.config(lines));
+        }
+    }
+
+    /**
+     * Closes the connections of the pool.
+     */
+    @TearDown
+    public void tearDown() {
+        pool.closeAllConnections();
+    }
+
+    /**
+     * One thread, the pool is never contended.
+     *
+     * @param timeouts The timeouts of the thread.
+     * @return the connection, so it is not optimized away.
+     */
+    @Benchmark
+    @Threads(1)
+    public Connection borrow1(Timeouts timeouts) {
+        return borrowAndReturn(timeouts);
+    }
+
+    /**
+     * Fewer threads than connections.
+     *
+     * @param timeouts The timeouts of the thread.
+     * @return the connection, so it is not optimized away.
+     */
+    @Benchmark
+    @Threads(8)
+    public Connection borrow8(Timeouts timeouts) {
+        return borrowAndReturn(timeouts);
+    }
+
+    /**
+     * More threads than connections, some of them wait.
+     *
+     * @param timeouts The timeouts of the thread.
+     * @return the connection, so it is not optimized away.
+     */
+    @Benchmark
+    @Threads(64)
+    public Connection borrow64(Timeouts timeouts) {
+        return borrowAndReturn(timeouts);
+    }
+
+    private Connection borrowAndReturn(Timeouts timeouts) {
+        try {
+            Connection con = pool.takeConnection();
+            pool.returnConnection(con);
+            return con;
+        } catch (ServerErrorException ex) {
+            timeouts.timeouts++;
+            return null;
+        }
+    }
+}
@@ -0,0 +1,4 @@
+/**
+ * This package stores the JMH benchmarks of the server.
+ */
+package benchmarks;
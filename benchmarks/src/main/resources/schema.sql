@@ -0,0 +1,32 @@
+-- The tables of the database that the DAO reads and writes, without the
+-- columns and constraints it does not use.
+CREATE TABLE public.res_partner (
+    id serial PRIMARY KEY,
+    company_id integer,
+    name varchar,
+    street varchar,
+    zip varchar,
+    city varchar,
+    email varchar,
+    active boolean,
+    create_date timestamp
+);
+CREATE TABLE public.res_users (
+    id serial PRIMARY KEY,
+    company_id integer,
+    partner_id integer NOT NULL REFERENCES public.res_partner(id),
+    active boolean,
+    login varchar NOT NULL UNIQUE,
+    password varchar,
+    create_date timestamp
+);
+CREATE TABLE public.res_groups_users_rel (
+    gid integer NOT NULL,
+    uid integer NOT NULL REFERENCES public.res_users(id),
+    PRIMARY KEY (gid, uid)
+);
+CREATE TABLE public.res_company_users_rel (
+    cid integer NOT NULL,
+    user_id integer NOT NULL REFERENCES public.res_users(id),
+    PRIMARY KEY (cid, user_id)
+);
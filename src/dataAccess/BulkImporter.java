@@ -0,0 +1,262 @@
+package dataAccess;
+
+import exceptions.EmailExistsException;
+import exceptions.ServerErrorException;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.ResourceBundle;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import models.Privilege;
+import models.User;
+
+/**
+ * Imports the users of a CSV file for the provisioning of a new customer. The
+ * file has one user per line with the columns email, password, name, street,
+ * zip, city and privilege (ADMIN or USER, USER if it is empty); a first line
+ * that starts with "email" is a header. The users are inserted in chunks of
+ * IMPORT_BATCH_SIZE, every chunk with JDBC batching in one transaction. The
+ * emails repeated in the file or already in the database are skipped. If a
+ * chunk fails it is inserted user by user so only the wrong users are lost.
+ *
+ * @author Olivia
+ */
+public class BulkImporter {
+
+    private static final Logger LOGGER = Logger.getLogger("package dataAcess");
+    private final PoolCreatable pool;
+    private final int batchSize;
+    private final Set<String> seen = new HashSet<>();
+    private long imported = 0;
+    private long duplicated = 0;
+    private long failed = 0;
+
+    /**
+     * Creates an importer that uses the pool of the server and the chunk size
+     * of the configuration file.
+     */
+    public BulkImporter() {
+        ResourceBundle configFile = ResourceBundle.getBundle("config.config");
+        this.pool = PoolFactory.getPool();
+        this.batchSize = Math.max(configFile.containsKey("IMPORT_BATCH_SIZE")
+                ? Integer.parseInt(configFile.getString("IMPORT_BATCH_SIZE").trim()) : 1000, 1);
+    }
+
+    /**
+     * Imports the users of a file.
+     *
+     * @param file The CSV file.
+     * @return the number of users imported.
+     * @throws IOException If the file cannot be read.
+     * @throws ServerErrorException If the database cannot be reached.
+     */
+    public long importFile(Path file) throws IOException, ServerErrorException {
+        LOGGER.info("Importing users from " + file + ".");
+        long start = System.nanoTime();
+        List<User> chunk = new ArrayList<>(batchSize);
+        int lineNumber = 0;
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                if (line.trim().isEmpty() || (lineNumber == 1 && line.toLowerCase().startsWith("email"))) {
+                    continue;
+                }
+                User user = parse(line);
+                if (user == null) {
+                    LOGGER.warning("Line " + lineNumber + " is not a valid user.");
+                    failed++;
+                } else if (!seen.add(user.getEmail())) {
+                    // The first line of an email wins inside the file
+                    duplicated++;
+                } else {
+                    chunk.add(user);
+                    if (chunk.size() == batchSize) {
+                        insert(chunk);
+                        chunk.clear();
+                        progress(start);
+                    }
+                }
+            }
+        }
+        if (!chunk.isEmpty()) {
+            insert(chunk);
+            progress(start);
+        }
+        LOGGER.info("Import finished: " + imported + " users imported, " + duplicated
+                + " duplicated and " + failed + " failed.");
+        return imported;
+    }
+
+    /**
+     * Inserts a chunk of users in one transaction, or one by one if the
+     * transaction fails.
+     *
+     * @param chunk The users, without repeated emails.
+     * @throws ServerErrorException If no connection can be taken.
+     */
+    private void insert(List<User> chunk) throws ServerErrorException {
+        chunk = withHashes(chunk);
+        Connection con = pool.takeConnection();
+        Set<String> existing;
+        try {
+            con.setAutoCommit(false);
+            existing = DAO.insertUsers(pool, con, chunk);
+            con.commit();
+        } catch (SQLException ex) {
+            LOGGER.log(Level.INFO, "Chunk rolled back, inserting the users one by one.", ex);
+            try {
+                con.rollback();
+            } catch (SQLException ex1) {
+                LOGGER.log(Level.SEVERE, null, ex1);
+            }
+            pool.returnConnection(con);
+            insertAlone(chunk);
+            return;
+        }
+        pool.returnConnection(con);
+        for (User user : chunk) {
+            if (existing.contains(user.getEmail())) {
+                duplicated++;
+            } else {
+                LoginIndex.getIndex().add(user.getEmail());
+                imported++;
+            }
+        }
+    }
+
+    /**
+     * Copies the users of a chunk with the hashes of their passwords.
+     *
+     * @param chunk The users.
+     * @return the users to store.
+     * @throws ServerErrorException If the passwords cannot be hashed.
+     */
+    private static List<User> withHashes(List<User> chunk) throws ServerErrorException {
+        List<String> passwords = new ArrayList<>(chunk.size());
+        for (User user : chunk) {
+            passwords.add(user.getPassword());
+        }
+        List<String> hashes = PasswordHasher.getHasher().hashAll(passwords);
+        List<User> stored = new ArrayList<>(chunk.size());
+        for (int i = 0; i < chunk.size(); i++) {
+            stored.add(DAO.withPassword(chunk.get(i), hashes.get(i)));
+        }
+        return stored;
+    }
+
+    /**
+     * Inserts the users of a failed chunk one by one.
+     *
+     * @param chunk The users.
+     */
+    private void insertAlone(List<User> chunk) {
+        DAO dao = SignableFactory.getDAO();
+        for (User user : chunk) {
+            try {
+                dao.signUpAlone(user);
+                imported++;
+            } catch (EmailExistsException ex) {
+                duplicated++;
+            } catch (ServerErrorException ex) {
+                LOGGER.warning("User " + user.getEmail() + " not imported: " + ex.getMessage());
+                failed++;
+            }
+        }
+    }
+
+    /**
+     * Logs the progress of the import.
+     *
+     * @param start When the import started, in nanoseconds.
+     */
+    private void progress(long start) {
+        double seconds = Math.max((System.nanoTime() - start) / 1e9, 1e-3);
+        LOGGER.info(imported + " users imported, " + duplicated + " duplicated, " + failed
+                + " failed (" + Math.round(imported / seconds) + " users/s).");
+    }
+
+    /**
+     * Reads a user from a line of the file. The fields are separated by
+     * commas and may be quoted with double quotes.
+     *
+     * @param line The line.
+     * @return the user or null if the line has no email or password or the
+     * privilege is not valid.
+     */
+    static User parse(String line) {
+        List<String> fields = split(line);
+        if (fields.size() < 2 || fields.get(0).isEmpty() || fields.get(1).isEmpty()) {
+            return null;
+        }
+        User user = new User();
+        user.setEmail(fields.get(0));
+        user.setPassword(fields.get(1));
+        user.setName(field(fields, 2));
+        user.setStreet(field(fields, 3));
+        user.setZip(field(fields, 4));
+        user.setCity(field(fields, 5));
+        String privilege = field(fields, 6);
+        try {
+            user.setPrivilege(privilege == null ? Privilege.USER : Privilege.valueOf(privilege.toUpperCase()));
+        } catch (IllegalArgumentException ex) {
+            return null;
+        }
+        return user;
+    }
+
+    private static String field(List<String> fields, int position) {
+        return position < fields.size() && !fields.get(position).isEmpty() ? fields.get(position) : null;
+    }
+
+    /**
+     * Splits a CSV line. A quoted field may have commas, and two double quotes
+     * inside it are one.
+     *
+     * @param line The line.
+     * @return the fields, trimmed if they are not quoted.
+     */
+    private static List<String> split(String line) {
+        List<String> fields = new ArrayList<>();
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        boolean wasQuoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (quoted) {
+                if (c == '"' && i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                    field.append('"');
+                    i++;
+                } else if (c == '"') {
+                    quoted = false;
+                } else {
+                    field.append(c);
+                }
+            } else if (c == '"') {
+                // The spaces before the opening quote are not part of the field
+                if (field.toString().trim().isEmpty()) {
+                    field.setLength(0);
+                }
+                quoted = true;
+                wasQuoted = true;
+            } else if (c == ',') {
+                fields.add(wasQuoted ? field.toString() : field.toString().trim());
+                field.setLength(0);
+                wasQuoted = false;
+            } else {
+                field.append(c);
+            }
+        }
+        fields.add(wasQuoted ? field.toString() : field.toString().trim());
+        return fields;
+    }
+}
@@ -0,0 +1,194 @@
+package dataAccess;
+
+import exceptions.EmailExistsException;
+import exceptions.LoginCredentialException;
+import exceptions.ServerErrorException;
+import interfaces.Signable;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Supplier;
+import java.util.logging.Logger;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import models.User;
+
+/**
+ * Implementation of Signable that keeps the users that have signed in
+ * recently, so a repeated sign in is answered without going to the database.
+ * The password is not kept: only its HMAC-SHA256 with a random key of the
+ * process, that is compared with the one of the password received. The key
+ * never leaves the memory and changes at every start, so a digest cannot be
+ * guessed without it, and a repeated sign in costs neither the query nor the
+ * hashing of the PasswordHasher. The entries
+ * expire after a time to live, the least recently used are removed when the
+ * cache is full, and a sign up removes the entry of its login.
+ *
+ * @author Olivia
+ */
+public class CachingSignable implements Signable {
+
+    private static final Logger LOGGER = Logger.getLogger("package dataAcess");
+    private static final SecretKeySpec KEY = key();
+    private final Supplier<Signable> signables;
+    private final long timeToLive;
+    private final Map<String, Entry> entries;
+
+    /**
+     * Creates the cache.
+     *
+     * @param signables Gives the Signable that goes to the database.
+     * @param maxSize The maximum number of users kept.
+     * @param timeToLive The milliseconds a user is kept.
+     */
+    public CachingSignable(Supplier<Signable> signables, int maxSize, long timeToLive) {
+        this.signables = signables;
+        this.timeToLive = timeToLive;
+        this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachingSignable.Entry> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    /**
+     * Removes the cached user and signs up the new one in the database.
+     *
+     * @param user is the received user.
+     * @return the user if execution is successful.
+     * @throws ServerErrorException if the connection to the DB failed.
+     * @throws EmailExistsException if the email already exists in the DB.
+     */
+    @Override
+    public User signUp(User user) throws ServerErrorException, EmailExistsException {
+        invalidate(user.getEmail());
+        try {
+            return signables.get().signUp(user);
+        } finally {
+            // A sign in made meanwhile must not keep the old data
+            invalidate(user.getEmail());
+        }
+    }
+
+    /**
+     * Answers the sign in from the cache if the user is there with the same
+     * password, otherwise asks the database and keeps the user.
+     *
+     * @param user It receives the user in order to make the select in the DB.
+     * @return It returns the user with information after the login is correct
+     * @throws ServerErrorException If the connection to the DB failed.
+     * @throws LoginCredentialException If the login or password is incorrect.
+     */
+    @Override
+    public User signIn(User user) throws ServerErrorException, LoginCredentialException {
+        String login = user.getEmail();
+        if (login == null || user.getPassword() == null) {
+            return signables.get().signIn(user);
+        }
+        Entry entry;
+        synchronized (entries) {
+            entry = entries.get(login);
+        }
+        long now = System.currentTimeMillis();
+        if (entry != null && entry.expiresAt > now
+                && MessageDigest.isEqual(entry.digest, digest(user.getPassword()))) {
+            user.setName(entry.name);
+            user.setStreet(entry.street);
+            user.setZip(entry.zip);
+            user.setCity(entry.city);
+            LOGGER.fine("User found in the cache.");
+            return user;
+        }
+        String password = user.getPassword();
+        User found;
+        try {
+            found = signables.get().signIn(user);
+        } catch (LoginCredentialException ex) {
+            invalidate(login);
+            throw ex;
+        }
+        entry = new Entry(found, digest(password), now + timeToLive);
+        synchronized (entries) {
+            entries.put(login, entry);
+        }
+        return found;
+    }
+
+    /**
+     * Removes a user from the cache.
+     *
+     * @param login The login of the user.
+     */
+    public void invalidate(String login) {
+        if (login != null) {
+            synchronized (entries) {
+                entries.remove(login);
+            }
+        }
+    }
+
+    /**
+     * Gets the number of users in the cache.
+     *
+     * @return the size of the cache.
+     */
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    /**
+     * Creates the random key of the digests.
+     *
+     * @return the key.
+     */
+    private static SecretKeySpec key() {
+        byte[] key = new byte[32];
+        new SecureRandom().nextBytes(key);
+        return new SecretKeySpec(key, "HmacSHA256");
+    }
+
+    /**
+     * Calculates the keyed digest of a password.
+     *
+     * @param password The password.
+     * @return the digest.
+     */
+    private static byte[] digest(String password) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(KEY);
+            return mac.doFinal(password.getBytes(StandardCharsets.UTF_8));
+        } catch (GeneralSecurityException ex) {
+            // Every JVM has HmacSHA256
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /**
+     * A user that has signed in, with the digest of its password.
+     */
+    private static class Entry {
+
+        private final byte[] digest;
+        private final String name;
+        private final String street;
+        private final String zip;
+        private final String city;
+        private final long expiresAt;
+
+        Entry(User user, byte[] digest, long expiresAt) {
+            this.digest = digest;
+            this.name = user.getName();
+            this.street = user.getStreet();
+            this.zip = user.getZip();
+            this.city = user.getCity();
+            this.expiresAt = expiresAt;
+        }
+    }
+}
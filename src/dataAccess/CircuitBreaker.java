@@ -0,0 +1,137 @@
+package dataAccess;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Logger;
+
+/**
+ * Stops sending requests to a database that is not answering. After
+ * BREAKER_FAILURES consecutive failures the breaker opens and every request
+ * fails at once, without waiting for the connect timeout. When
+ * BREAKER_OPEN_TIME milliseconds have passed a single request is let through
+ * as a probe: if it works the breaker closes, if it fails it opens again.
+ *
+ * @author Irati
+ */
+public class CircuitBreaker {
+
+    /**
+     * The states of the breaker.
+     */
+    public enum State {
+        /**
+         * The requests go to the database.
+         */
+        CLOSED,
+        /**
+         * The requests fail at once.
+         */
+        OPEN,
+        /**
+         * One request is probing the database.
+         */
+        HALF_OPEN
+    }
+
+    private static final Logger LOGGER = Logger.getLogger("package dataAcess");
+    private final String name;
+    private final int threshold;
+    private final long openNanos;
+    private final AtomicReference<State> state = new AtomicReference<>(State.CLOSED);
+    private final AtomicInteger failures = new AtomicInteger();
+    /**
+     * When the breaker opened or the last probe started.
+     */
+    private final AtomicLong since = new AtomicLong();
+
+    /**
+     * Creates a closed breaker.
+     *
+     * @param name The name used in the log.
+     * @param threshold The consecutive failures that open it, 0 to never
+     * open.
+     * @param openTime The milliseconds it stays open before a probe.
+     */
+    public CircuitBreaker(String name, int threshold, long openTime) {
+        this.name = name;
+        this.threshold = threshold;
+        this.openNanos = TimeUnit.MILLISECONDS.toNanos(openTime);
+    }
+
+    /**
+     * Checks if a request can go to the database. When the open time has
+     * passed the first caller becomes the probe, and it must report its
+     * result with onSuccess or onFailure. If the probe never reports, another
+     * one is let through after the open time.
+     *
+     * @return false if the request must fail at once.
+     */
+    public boolean allowRequest() {
+        State current = state.get();
+        if (current == State.CLOSED) {
+            return true;
+        }
+        long now = System.nanoTime();
+        long start = since.get();
+        if (now - start < openNanos || !since.compareAndSet(start, now)) {
+            return false;
+        }
+        if (state.compareAndSet(State.OPEN, State.HALF_OPEN)) {
+            LOGGER.info("Probing the " + name + " database.");
+        }
+        return true;
+    }
+
+    /**
+     * Checks if the requests are failing at once, without taking the place of
+     * the probe.
+     *
+     * @return true if the breaker is open and it is not time for a probe.
+     */
+    public boolean isOpen() {
+        return state.get() != State.CLOSED && System.nanoTime() - since.get() < openNanos;
+    }
+
+    /**
+     * Records that the database answered.
+     */
+    public void onSuccess() {
+        failures.set(0);
+        if (state.get() != State.CLOSED && state.getAndSet(State.CLOSED) != State.CLOSED) {
+            LOGGER.info("The " + name + " database is answering again, circuit closed.");
+        }
+    }
+
+    /**
+     * Records that the database could not be reached.
+     */
+    public void onFailure() {
+        if (threshold <= 0) {
+            return;
+        }
+        if (state.get() == State.HALF_OPEN) {
+            since.set(System.nanoTime());
+            if (state.compareAndSet(State.HALF_OPEN, State.OPEN)) {
+                LOGGER.warning("The probe of the " + name + " database failed, circuit open again.");
+            }
+            return;
+        }
+        if (failures.incrementAndGet() >= threshold && state.get() == State.CLOSED) {
+            since.set(System.nanoTime());
+            if (state.compareAndSet(State.CLOSED, State.OPEN)) {
+                LOGGER.warning("The " + name + " database failed " + threshold + " times, circuit open.");
+            }
+        }
+    }
+
+    /**
+     * Gets the state of the breaker.
+     *
+     * @return the state.
+     */
+    public State getState() {
+        return state.get();
+    }
+}
@@ -0,0 +1,33 @@
+package dataAccess;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+
+/**
+ * This interface defines where the pools get their new connections from.
+ *
+ * @author Irati
+ */
+public interface ConnectionSource {
+
+    /**
+     * Opens a new database connection.
+     *
+     * @return the new connection.
+     * @throws SQLException If the connection cannot be opened.
+     */
+    public Connection open() throws SQLException;
+
+    /**
+     * Creates a source that opens the connections with the DriverManager.
+     *
+     * @param url The URL of the database.
+     * @param user The user of the database.
+     * @param password The password of the user.
+     * @return the source.
+     */
+    public static ConnectionSource of(String url, String user, String password) {
+        return () -> DriverManager.getConnection(url, user, password);
+    }
+}
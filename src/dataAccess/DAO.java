@@ -4,44 +4,90 @@ import exceptions.EmailExistsException;
 import exceptions.LoginCredentialException;
 import exceptions.ServerErrorException;
 import interfaces.Signable;
+import java.sql.Array;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.ResourceBundle;
+import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import metrics.Histogram;
+import metrics.Metrics;
 import models.Privilege;
 import models.User;
-import service.Server;
-import service.Worker;
 
 /**
  * Class that implements the SignUp and SignIn methods of the Signable
- * interface.
+ * interface. The connections, statements and results of a call are local to
+ * it and are returned on every path, so one DAO is shared by all the workers.
  *
  * @author Olivia
  * @author Leire
  */
 public class DAO implements Signable {
 
-    private Connection con;
-    private PreparedStatement stmt;
-    private PoolCreatable connection;
-    private ResultSet rs;
+    private final PoolCreatable connection;
     private static final Logger LOGGER = Logger.getLogger("package dataAcess");
+    static final String SELECTEMAIL = "SELECT 1 FROM public.res_users WHERE login = ?";
+    static final String SELECTEMAILS = "SELECT login FROM public.res_users WHERE login = ANY(?)";
+    /**
+     * Inserts a user with the groups of the USER privilege.
+     */
+    static final String INSERTUSER = insertUserSql("(1), (7), (8), (9)");
+    /**
+     * Inserts a user with the groups of the ADMIN privilege.
+     */
+    static final String INSERTUSER_ADMIN = insertUserSql("(1), (2), (3), (4), (7), (8), (9)");
+    /**
+     * SQL state of a duplicated key, the login is unique in res_users.
+     */
+    static final String UNIQUE_VIOLATION = "23505";
+    /**
+     * SQL state of a statement cancelled by its query timeout.
+     */
+    static final String QUERY_CANCELED = "57014";
+    /**
+     * Reads the stored password and the profile of the partner.
+     */
+    static final String SEARCHUSER = "SELECT u.password, p.name, p.street, p.zip, p.city FROM public.res_users u "
+            + "LEFT JOIN public.res_partner p ON p.id = u.partner_id WHERE u.login = ?";
+    /**
+     * Only reads the stored password.
+     */
+    static final String CHECKCREDENTIALS = "SELECT password FROM public.res_users WHERE login = ?";
+    /**
+     * Replaces a stored password, if it has not changed meanwhile.
+     */
+    static final String UPDATEPASSWORD = "UPDATE public.res_users SET password = ? WHERE login = ? AND password = ?";
+    private static final boolean PROFILE_ON_SIGNIN = profileOnSignIn();
+    /**
+     * Times of the SQL statements of the sign up and the sign in.
+     */
+    private static final Histogram SIGNUP_SELECT = Metrics.histogram("sql.signup.select");
+    private static final Histogram SIGNUP_INSERT = Metrics.histogram("sql.signup.insert");
+    private static final Histogram BATCH_SELECT = Metrics.histogram("sql.signup.batch.select");
+    private static final Histogram BATCH_INSERT = Metrics.histogram("sql.signup.batch.insert");
+    private static final Histogram SIGNIN_SELECT = Metrics.histogram("sql.signin.select");
+    private static final Histogram SIGNIN_REHASH = Metrics.histogram("sql.signin.rehash");
+
     /**
      * Constructor to instance the DAO
      */
     public DAO() {
-        if(connection == null){
-           connection = PoolFactory.getPool();
-        }
+        connection = PoolFactory.getPool();
     }
 
     /**
-     * Connects to DB via a connection taken from the Pool and inserts all the
-     * user parameters in the necessary DB tables.
+     * Signs up a user. If SIGNUP_JOURNAL is true the user is stored in the
+     * SignUpJournal and inserted later. If SIGNUP_BATCH_SIZE is greater than
+     * one the user is inserted by the SignUpBatcher together with other
+     * concurrent sign ups, otherwise it is inserted alone.
      *
      * @param user is the received user.
      * @return the user if execution is successful.
@@ -50,135 +96,296 @@ public class DAO implements Signable {
      */
     @Override
     public User signUp(User user) throws ServerErrorException, EmailExistsException {
+        SignUpJournal journal = SignUpJournal.getJournal();
+        if (journal == null && connection.getBreaker().isOpen()) {
+            // No password is hashed for a sign up that cannot be stored
+            throw new ServerErrorException("The database is not available.");
+        }
+        // The hash is stored, the user sent back keeps its password
+        User stored = withPassword(user, PasswordHasher.getHasher().hash(user.getPassword()));
+        SignUpBatcher batcher = SignUpBatcher.getBatcher();
+        if (journal != null) {
+            journal.append(stored);
+        } else if (batcher != null) {
+            batcher.signUp(stored);
+        } else {
+            signUpAlone(stored);
+        }
+        // The replicas may not have the user yet
+        PoolFactory.getRouter().pin(user.getEmail());
+        return user;
+    }
 
-        final String SELECTEMAIL = "SELECT * FROM public.res_users WHERE login = ?";
-        final String INSERTPARTNER = "INSERT INTO public.res_partner(company_id, name, street, zip, city, email, active, create_date) VALUES('1',  ?,  ?,  ?,  ?,  ?, true, now())";
-        final String SELECTPARTNER = "SELECT id, create_date FROM public.res_partner WHERE id IN (SELECT MAX(id) FROM public.res_partner);";
-        final String INSERTUSER = "INSERT INTO public.res_users(company_id, partner_id, active, login, password, create_date) VALUES('1', ?, True, ?, ?, ?)";
-        final String SELECTUSER = "SELECT MAX(id) FROM public.res_users";
-        final String INSERTGROUP_USER_REL = "INSERT INTO public.res_groups_users_rel(gid, uid) VALUES ('1', ?),('7', ?),('8', ?),('9', ?)";
-        final String INSERTGROUP_USER_REL_ADMIN = "INSERT INTO public.res_groups_users_rel(gid, uid) VALUES ('1', ?),('2', ?),('3', ?),('4', ?),('7', ?),('8', ?),('9', ?)";
-        final String INSERTCOMPANY_USER_REL = "INSERT INTO public.res_company_users_rel(cid, user_id)VALUES ('1', ?);";
-
-        Integer partner_id = null;
-        Integer uid = null;
-        Timestamp create_date = null;
-
+    /**
+     * Connects to DB via a connection taken from the Pool and inserts all the
+     * user parameters in the necessary DB tables. The partner, the user and
+     * its group and company relations are inserted by one statement that
+     * passes the generated ids from one insert to the next, so the sign up is
+     * atomic without a transaction and takes two round trips.
+     *
+     * @param user is the received user.
+     * @return the user if execution is successful.
+     * @throws ServerErrorException if the connection to the DB failed.
+     * @throws EmailExistsException if the email already exists in the DB.
+     */
+    User signUpAlone(User user) throws ServerErrorException, EmailExistsException {
+        LOGGER.info("Creating user.");
+        // Open the connection to DB
+        Connection con = connection.takeConnection();
         try {
-            LOGGER.info("Creating user.");
-            try {
-                // Open the connection to DB
-                try {
-                    con = connection.takeConnection();
-                } catch (ServerErrorException ex) {
-                    LOGGER.getLogger(Server.class.getName()).log(Level.SEVERE, null, ex);
-                    throw new ServerErrorException(ex.getMessage());
+            // The index knows most of the new emails without asking the DB
+            if (LoginIndex.getIndex().mightExist(user.getEmail())) {
+                // Establish statement to select posibly existing email from DB.
+                PreparedStatement select = bounded(connection.prepareStatement(con, SELECTEMAIL));
+                select.setString(1, user.getEmail());
+                long start = System.nanoTime();
+                boolean exists;
+                try (ResultSet rs = select.executeQuery()) {
+                    exists = rs.next();
                 }
+                SIGNUP_SELECT.recordSince(start);
+                if (exists) {
+                    throw new EmailExistsException("Email exists.");
+                }
+            }
 
-                if (con != null) {
-                    con.setAutoCommit(false);
-                    con.setSavepoint();
-                    // Establish statement to select posibly existing email from DB.
-                    stmt = con.prepareStatement(SELECTEMAIL);
-                    stmt.setString(1, user.getEmail());
-                    rs = stmt.executeQuery();
-
-                    while (rs.next()) {
-                        throw new EmailExistsException("Email exists.");
-
-                    }
-
-                    // Establish the statatenent to insert into res_partner
-                    stmt = con.prepareStatement(INSERTPARTNER);
-                    stmt.setString(1, user.getName());
-                    stmt.setString(2, user.getStreet());
-                    stmt.setString(3, user.getZip());
-                    stmt.setString(4, user.getCity());
-                    stmt.setString(5, user.getEmail());
-                    if (stmt.executeUpdate() == 0) {
-                        throw new ServerErrorException("Error in the partner insert.");
-                    }
-
-                    // Second statement to select id and creation date from res_partner
-                    stmt = con.prepareStatement(SELECTPARTNER);
-                    rs = stmt.executeQuery();
-                    while (rs.next()) {
-                        partner_id = rs.getInt(1);
-                        create_date = rs.getTimestamp(2);
-                    }
-
-                    // Prepare third statement to insert the new user into res_users
-                    stmt = con.prepareStatement(INSERTUSER);
-                    stmt.setInt(1, partner_id);
-                    stmt.setString(2, user.getEmail());
-                    stmt.setString(3, user.getPassword());
-                    stmt.setTimestamp(4, create_date);
-                    // Execute statement
-                    if (stmt.executeUpdate() == 0) {
-                        throw new ServerErrorException("Error while inserting user.");
-                    }
+            // Establish the statement that inserts the user in all the tables
+            PreparedStatement insert;
+            if (user.getPrivilege() == Privilege.ADMIN) {
+                // ONLY IF THE USER TYPE IS ADMIN
+                insert = bounded(connection.prepareStatement(con, INSERTUSER_ADMIN));
+            } else {
+                // ONLY IF THE USER TYPE IS USER
+                insert = bounded(connection.prepareStatement(con, INSERTUSER));
+            }
+            setUserParameters(insert, user);
+            // Execute statement
+            long start = System.nanoTime();
+            int inserted = insert.executeUpdate();
+            SIGNUP_INSERT.recordSince(start);
+            if (inserted == 0) {
+                throw new ServerErrorException("Error while inserting user.");
+            }
+            LoginIndex.getIndex().add(user.getEmail());
+            LOGGER.info("User created succesfully.");
+        } catch (SQLException ex) {
+            checkTimeout(ex);
+            if (UNIQUE_VIOLATION.equals(ex.getSQLState())) {
+                // Another sign up with the same email was committed first
+                LoginIndex.getIndex().add(user.getEmail());
+                throw new EmailExistsException("Email exists.");
+            }
+            LOGGER.info("Error DAO: SQLError:\n" + ex.getMessage());
+            throw new ServerErrorException(ex.getMessage());
+        } finally {
+            // The statements belong to the pool, the connection goes back on every path
+            connection.returnConnection(con);
+        }
+        return user;
+    }
 
-                    // Fourth statement to select UID from res_users
-                    stmt = con.prepareStatement(SELECTUSER);
-                    rs = stmt.executeQuery();
-                    while (rs.next()) {
-                        uid = rs.getInt(1);
-                    }
+    /**
+     * Inserts several users with JDBC batching in the current transaction of
+     * the connection. The users whose email is already in the database are
+     * not inserted. The caller commits.
+     *
+     * @param pool The pool the connection was borrowed from.
+     * @param con The connection, without autocommit.
+     * @param users The users, without repeated emails.
+     * @return the emails that were already in the database.
+     * @throws SQLException If a statement fails.
+     */
+    static Set<String> insertUsers(PoolCreatable pool, Connection con, Collection<User> users) throws SQLException {
+        // Establish statement to select the existing emails of the users
+        Set<String> existing = new HashSet<>();
+        List<String> emails = new ArrayList<>(users.size());
+        for (User user : users) {
+            emails.add(user.getEmail());
+        }
+        Array logins = con.createArrayOf("varchar", emails.toArray());
+        PreparedStatement select = bounded(pool.prepareStatement(con, SELECTEMAILS));
+        select.setArray(1, logins);
+        long start = System.nanoTime();
+        try (ResultSet found = select.executeQuery()) {
+            while (found.next()) {
+                existing.add(found.getString(1));
+            }
+        }
+        logins.free();
+        BATCH_SELECT.recordSince(start);
 
-                    // Prepare fifth statement to insert user into res_groups_users_rel
-                    if (user.getPrivilege() == Privilege.ADMIN) {
-                        // ONLY IF THE USER TYPE IS ADMIN
-                        stmt = con.prepareStatement(INSERTGROUP_USER_REL_ADMIN);
-                        stmt.setInt(5, uid);
-                        stmt.setInt(6, uid);
-                        stmt.setInt(7, uid);
-                    } else {
-                        // ONLY IF THE USER TYPE IS USER
-                        stmt = con.prepareStatement(INSERTGROUP_USER_REL);
+        PreparedStatement plain = null;
+        PreparedStatement admins = null;
+        try {
+            for (User user : users) {
+                if (existing.contains(user.getEmail())) {
+                    continue;
+                }
+                PreparedStatement insert;
+                if (user.getPrivilege() == Privilege.ADMIN) {
+                    if (admins == null) {
+                        admins = bounded(pool.prepareStatement(con, INSERTUSER_ADMIN));
                     }
-                    stmt.setInt(1, uid);
-                    stmt.setInt(2, uid);
-                    stmt.setInt(3, uid);
-                    stmt.setInt(4, uid);
-                    // Execute statement
-                    if (stmt.executeUpdate() == 0) {
-                        throw new ServerErrorException("Error inserting into groups.");
+                    insert = admins;
+                } else {
+                    if (plain == null) {
+                        plain = bounded(pool.prepareStatement(con, INSERTUSER));
                     }
-
-                    // Prepare sixth statement to insert user into res_company_users_rel
-                    stmt = con.prepareStatement(INSERTCOMPANY_USER_REL);
-                    stmt.setInt(1, uid);
-                    //Execute statement
-                    if (stmt.executeUpdate() == 0) {
-                        throw new ServerErrorException("Error inserting into company.");
-                    }
-                    con.commit();
-                    LOGGER.info("User created succesfully.");
+                    insert = plain;
                 }
+                setUserParameters(insert, user);
+                insert.addBatch();
+            }
+            start = System.nanoTime();
+            if (plain != null) {
+                plain.executeBatch();
+            }
+            if (admins != null) {
+                admins.executeBatch();
+            }
+            BATCH_INSERT.recordSince(start);
+            return existing;
+        } finally {
+            // The cached statements must not keep the rows of a failed batch for the next one
+            clearBatch(plain);
+            clearBatch(admins);
+        }
+    }
 
+    private static void clearBatch(PreparedStatement statement) {
+        if (statement != null) {
+            try {
+                statement.clearBatch();
             } catch (SQLException ex) {
-                con.rollback();
-                LOGGER.info("Error DAO: SQLError, rolled back:\n" + ex.getMessage());
-                throw new ServerErrorException(ex.getMessage());
-            } finally {
-                //Close the connection
-                if (stmt != null) {
-                    stmt.close();
-                }
-                if (rs != null) {
-                    rs.close();
-                }
-                connection.returnConnection(con);
+                LOGGER.log(Level.WARNING, null, ex);
+            }
+        }
+    }
+
+    /**
+     * Checks if a login is in the primary database.
+     *
+     * @param login The login.
+     * @return true if it exists.
+     * @throws ServerErrorException If the connection to the DB failed.
+     */
+    static boolean loginExists(String login) throws ServerErrorException {
+        PoolCreatable pool = PoolFactory.getPool();
+        Connection con = pool.takeConnection();
+        try {
+            PreparedStatement select = bounded(pool.prepareStatement(con, SELECTEMAIL));
+            select.setString(1, login);
+            long start = System.nanoTime();
+            try (ResultSet found = select.executeQuery()) {
+                boolean exists = found.next();
+                SIGNUP_SELECT.recordSince(start);
+                return exists;
             }
         } catch (SQLException ex) {
+            checkTimeout(ex);
             throw new ServerErrorException(ex.getMessage());
+        } finally {
+            pool.returnConnection(con);
+        }
+    }
+
+    /**
+     * Gives a statement the time left to the request of the current thread.
+     * The statements are reused, so it is set before every execution, and it
+     * is 0, no timeout, for threads without a request.
+     *
+     * @param stmt The statement.
+     * @return the same statement.
+     * @throws SQLException If the timeout cannot be set.
+     */
+    static PreparedStatement bounded(PreparedStatement stmt) throws SQLException {
+        stmt.setQueryTimeout(Deadline.queryTimeout());
+        return stmt;
+    }
+
+    /**
+     * Counts a statement cancelled because its request ran out of time.
+     *
+     * @param ex The error of the statement.
+     */
+    static void checkTimeout(SQLException ex) {
+        if (QUERY_CANCELED.equals(ex.getSQLState()) && Deadline.isExpired()) {
+            Deadline.expire(Deadline.Cause.SQL);
         }
-        return user;
+    }
+
+    /**
+     * Copies a user with another password.
+     *
+     * @param user The user.
+     * @param password The password of the copy.
+     * @return the copy.
+     */
+    static User withPassword(User user, String password) {
+        User copy = new User();
+        copy.setEmail(user.getEmail());
+        copy.setPassword(password);
+        copy.setName(user.getName());
+        copy.setStreet(user.getStreet());
+        copy.setZip(user.getZip());
+        copy.setCity(user.getCity());
+        copy.setPrivilege(user.getPrivilege());
+        return copy;
+    }
+
+    /**
+     * Sets the parameters of INSERTUSER and INSERTUSER_ADMIN.
+     *
+     * @param stmt The statement.
+     * @param user The user to insert.
+     * @throws SQLException If a parameter cannot be set.
+     */
+    static void setUserParameters(PreparedStatement stmt, User user) throws SQLException {
+        stmt.setString(1, user.getName());
+        stmt.setString(2, user.getStreet());
+        stmt.setString(3, user.getZip());
+        stmt.setString(4, user.getCity());
+        stmt.setString(5, user.getEmail());
+        stmt.setString(6, user.getEmail());
+        stmt.setString(7, user.getPassword());
+    }
+
+    /**
+     * Builds the statement that inserts a user in res_partner, res_users,
+     * res_groups_users_rel and res_company_users_rel.
+     *
+     * @param groups The ids of the groups of the user.
+     * @return the SQL text.
+     */
+    private static String insertUserSql(String groups) {
+        return "WITH partner AS ("
+                + "INSERT INTO public.res_partner(company_id, name, street, zip, city, email, active, create_date) "
+                + "VALUES ('1', ?, ?, ?, ?, ?, true, now()) RETURNING id, create_date), "
+                + "usr AS ("
+                + "INSERT INTO public.res_users(company_id, partner_id, active, login, password, create_date) "
+                + "SELECT 1, id, true, ?, ?, create_date FROM partner RETURNING id), "
+                + "grp AS ("
+                + "INSERT INTO public.res_groups_users_rel(gid, uid) "
+                + "SELECT g.gid, usr.id FROM usr CROSS JOIN (VALUES " + groups + ") AS g(gid)) "
+                + "INSERT INTO public.res_company_users_rel(cid, user_id) SELECT 1, id FROM usr";
+    }
+
+    /**
+     * Reads if the sign in must return the profile of the user.
+     *
+     * @return false only if SIGNIN_PROFILE is false.
+     */
+    private static boolean profileOnSignIn() {
+        ResourceBundle configFile = ResourceBundle.getBundle("config.config");
+        return !configFile.containsKey("SIGNIN_PROFILE") || Boolean.parseBoolean(configFile.getString("SIGNIN_PROFILE").trim());
     }
 
     /**
      * This method is for connect to the DB. The connection taken from the Pool
-     * and search for the user that is trying to sign in.
+     * and search for the user that is trying to sign in. The credentials and
+     * the profile of the partner are read by one joined query, unless
+     * SIGNIN_PROFILE is false in the configuration file: then only the
+     * credentials are checked.
      *
      * @param user It receives the user in order to make the select in the DB.
      * @return It returns the user with information after the login is correct
@@ -188,55 +395,149 @@ public class DAO implements Signable {
      */
     @Override
     public User signIn(User user) throws ServerErrorException, LoginCredentialException {
-        final String SEARCHUSER = "SELECT login, password FROM public.res_users WHERE (login = ? and password = ?)";
-        final String USEREXISTS = "SELECT name FROM public.res_partner WHERE id IN (SELECT partner_id FROM public.res_users WHERE (login = ?))";
+        return signIn(user, PROFILE_ON_SIGNIN);
+    }
+
+    /**
+     * Checks the login and password of a user without reading its profile.
+     *
+     * @param user It receives the user in order to make the select in the DB.
+     * @return It returns the same user after the login is correct
+     * @throws ServerErrorException If the connection to the DB failed.
+     * @throws LoginCredentialException If the user is not in the DB or the user
+     * login or password is incorrect.
+     */
+    public User checkCredentials(User user) throws ServerErrorException, LoginCredentialException {
+        return signIn(user, false);
+    }
 
+    /**
+     * Searches the user that is trying to sign in. The stored password is
+     * read by the login, from the pool chosen by the ReplicaRouter, and
+     * checked by the PasswordHasher after the connection is returned, so no
+     * connection waits for the hashing. A password that is not hashed yet is
+     * replaced by its hash in the primary.
+     *
+     * @param user The user with its login and password.
+     * @param profile If the name, street, zip and city must be read too.
+     * @return the user.
+     * @throws ServerErrorException If the connection to the DB failed.
+     * @throws LoginCredentialException If the login or password is incorrect.
+     */
+    private User signIn(User user, boolean profile) throws ServerErrorException, LoginCredentialException {
         LOGGER.info("Searching for user.");
+        String stored = null;
+        String name = null;
+        String street = null;
+        String zip = null;
+        String city = null;
+        SignUpJournal journal = SignUpJournal.getJournal();
+        if (journal != null) {
+            // A login that has just signed up may still be in the journal
+            journal.awaitApplied(user.getEmail());
+        }
+        // A replica unless the login has just signed up
+        PoolCreatable pool = PoolFactory.getRouter().forRead(user.getEmail());
+        Connection con = pool.takeConnection();
         try {
-            con = connection.takeConnection();
-            stmt = con.prepareStatement(SEARCHUSER);
-            stmt.setString(1, user.getEmail());
-            stmt.setString(2, user.getPassword());
-            rs = stmt.executeQuery();
-
-            if (rs.next()) {
-                user.setEmail(rs.getString("login"));
-                user.setPassword(rs.getString("password"));
-
-            } else {
-                throw new LoginCredentialException("Incorrect Sign In.");
-            }
-            // If the user exist.
-
-            stmt = con.prepareStatement(USEREXISTS);
-            stmt.setString(1, user.getEmail());
-            rs = stmt.executeQuery();
-            while (rs.next()) {
-                user.setName(rs.getString("name"));
+            PreparedStatement select = bounded(pool.prepareStatement(con, profile ? SEARCHUSER : CHECKCREDENTIALS));
+            select.setString(1, user.getEmail());
+            long start = System.nanoTime();
+            try (ResultSet rs = select.executeQuery()) {
+                if (rs.next()) {
+                    // If the user exist.
+                    stored = rs.getString("password");
+                    if (profile) {
+                        name = rs.getString("name");
+                        street = rs.getString("street");
+                        zip = rs.getString("zip");
+                        city = rs.getString("city");
+                    }
+                }
             }
-            stmt.close();
-
-            connection.returnConnection(con); // Returns the conection to the pool.
-            LOGGER.info("User found.");
+            SIGNIN_SELECT.recordSince(start);
         } catch (SQLException ex) {
-             LOGGER.getLogger(Worker.class.getName()).log(Level.SEVERE, null, ex);
+            checkTimeout(ex);
+            LOGGER.log(Level.SEVERE, null, ex);
             throw new ServerErrorException("Server error.");
-
         } finally {
+            // Returns the conection to the pool.
+            pool.returnConnection(con);
+        }
+
+        // A missing login is checked too, so it takes the same time
+        PasswordHasher hasher = PasswordHasher.getHasher();
+        if (!hasher.verify(user.getPassword(), stored)) {
+            throw new LoginCredentialException("Incorrect Sign In.");
+        }
+        if (hasher.needsRehash(stored)) {
+            rehash(user, stored, pool != connection);
+        }
+        if (profile) {
+            user.setName(name);
+            user.setStreet(street);
+            user.setZip(zip);
+            user.setCity(city);
+        }
+        LOGGER.info("User found.");
+        return user;
+    }
 
+    /**
+     * Replaces a stored password with a new hash. The sign in does not fail
+     * if it cannot be replaced, it is tried again in the next one.
+     *
+     * A password read from a replica is read again from the primary, which
+     * may have the new hash already, before it is hashed.
+     *
+     * @param user The user with its login and password.
+     * @param stored The stored password.
+     * @param fromReplica If the stored password was read from a replica.
+     */
+    private void rehash(User user, String stored, boolean fromReplica) {
+        try {
+            if (fromReplica && !stillStored(user.getEmail(), stored)) {
+                return;
+            }
+            String hash = PasswordHasher.getHasher().hash(user.getPassword());
+            Connection con = connection.takeConnection();
             try {
-                if (rs != null) {
-                    rs.close();
-                }
-                if (stmt != null) {
-                    stmt.close();
-                }
+                PreparedStatement update = bounded(connection.prepareStatement(con, UPDATEPASSWORD));
+                update.setString(1, hash);
+                update.setString(2, user.getEmail());
+                update.setString(3, stored);
+                long start = System.nanoTime();
+                update.executeUpdate();
+                SIGNIN_REHASH.recordSince(start);
+            } finally {
+                connection.returnConnection(con);
+            }
+        } catch (ServerErrorException | SQLException ex) {
+            LOGGER.warning("Password of " + user.getEmail() + " not hashed: " + ex.getMessage());
+        }
+    }
 
-            } catch (SQLException ex) {
-                 LOGGER.getLogger(Worker.class.getName()).log(Level.SEVERE, null, ex);
-                throw new ServerErrorException("Server error.");
+    /**
+     * Checks if the primary still has a stored password that must be hashed
+     * again.
+     *
+     * @param login The login.
+     * @param stored The stored password read from a replica.
+     * @return true if the primary has the same password.
+     * @throws ServerErrorException If the connection to the DB failed.
+     * @throws SQLException If the select fails.
+     */
+    private boolean stillStored(String login, String stored) throws ServerErrorException, SQLException {
+        Connection con = connection.takeConnection();
+        try {
+            PreparedStatement select = bounded(connection.prepareStatement(con, CHECKCREDENTIALS));
+            select.setString(1, login);
+            try (ResultSet rs = select.executeQuery()) {
+                return rs.next() && stored.equals(rs.getString("password"))
+                        && PasswordHasher.getHasher().needsRehash(stored);
             }
+        } finally {
+            connection.returnConnection(con);
         }
-        return user;
     }
 }
@@ -0,0 +1,194 @@
+package dataAccess;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.ResourceBundle;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+import metrics.Metrics;
+
+/**
+ * The time left to answer the request of the current thread. A request has
+ * REQUEST_TIMEOUT milliseconds from the moment its client was accepted, and
+ * every wait on its way takes its timeout from what is left: the read of the
+ * request, the borrow of a pool connection, the hashing of the password, the
+ * batch of a sign up and every SQL statement. A request that runs out of time ends with a server
+ * error, and it is counted by the step where the time ran out. Threads
+ * without a request, like the batcher or the import, have no deadline.
+ *
+ * @author Irati
+ */
+public class Deadline {
+
+    /**
+     * The steps where a request can run out of time.
+     */
+    public enum Cause {
+        /**
+         * Waiting for a worker thread.
+         */
+        QUEUE,
+        /**
+         * Reading the request from the client.
+         */
+        READ,
+        /**
+         * Waiting for a pool connection.
+         */
+        POOL,
+        /**
+         * Waiting for the password to be hashed.
+         */
+        HASH,
+        /**
+         * Waiting for the batch of a sign up to be inserted.
+         */
+        BATCH,
+        /**
+         * Running the SQL statements.
+         */
+        SQL
+    }
+
+    private static final Logger LOGGER = Logger.getLogger("package dataAcess");
+    private static final long BUDGET = budget();
+    private static final ThreadLocal<Long> DEADLINE = new ThreadLocal<>();
+    private static final Map<Cause, LongAdder> EXPIRED = new EnumMap<>(Cause.class);
+
+    static {
+        for (Cause cause : Cause.values()) {
+            LongAdder expired = new LongAdder();
+            EXPIRED.put(cause, expired);
+            Metrics.gauge("deadline.expired." + cause.name().toLowerCase(), expired::sum);
+        }
+    }
+
+    private Deadline() {
+    }
+
+    /**
+     * Gives the current thread the deadline of a request.
+     *
+     * @param startNanos When the client was accepted, from System.nanoTime.
+     */
+    public static void start(long startNanos) {
+        if (BUDGET > 0) {
+            DEADLINE.set(startNanos + BUDGET);
+        }
+    }
+
+    /**
+     * Removes the deadline of the current thread, when its request ends.
+     */
+    public static void clear() {
+        DEADLINE.remove();
+    }
+
+    /**
+     * Gets the time left to the request of the current thread.
+     *
+     * @param unit The unit of the result.
+     * @return the time left, 0 if it has expired or Long.MAX_VALUE if there
+     * is no deadline.
+     */
+    public static long remaining(TimeUnit unit) {
+        Long deadline = DEADLINE.get();
+        if (deadline == null) {
+            return Long.MAX_VALUE;
+        }
+        return unit.convert(Math.max(deadline - System.nanoTime(), 0), TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Checks if the request of the current thread has run out of time.
+     *
+     * @return true if it has a deadline and it has passed.
+     */
+    public static boolean isExpired() {
+        Long deadline = DEADLINE.get();
+        return deadline != null && deadline - System.nanoTime() <= 0;
+    }
+
+    /**
+     * Limits a timeout to the time left.
+     *
+     * @param millis The configured timeout in milliseconds.
+     * @return the smaller of both.
+     */
+    public static long bound(long millis) {
+        return Math.min(millis, remaining(TimeUnit.MILLISECONDS));
+    }
+
+    /**
+     * Gets the timeout of a socket read, that is never 0 because for a
+     * socket 0 is no timeout.
+     *
+     * @param millis The configured timeout in milliseconds, 0 for none.
+     * @return the timeout for Socket.setSoTimeout.
+     */
+    public static int socketTimeout(int millis) {
+        long remaining = remaining(TimeUnit.MILLISECONDS);
+        if (remaining == Long.MAX_VALUE) {
+            return millis;
+        }
+        long bounded = millis > 0 ? Math.min(millis, remaining) : remaining;
+        return (int) Math.max(Math.min(bounded, Integer.MAX_VALUE), 1);
+    }
+
+    /**
+     * Gets the timeout of a SQL statement, that is never 0 while there is a
+     * deadline because for a statement 0 is no timeout.
+     *
+     * @return the seconds for Statement.setQueryTimeout, 0 if there is no
+     * deadline.
+     */
+    public static int queryTimeout() {
+        long remaining = remaining(TimeUnit.MILLISECONDS);
+        if (remaining == Long.MAX_VALUE) {
+            return 0;
+        }
+        return (int) Math.max(Math.min((remaining + 999) / 1000, Integer.MAX_VALUE), 1);
+    }
+
+    /**
+     * Counts a request that has run out of time.
+     *
+     * @param cause The step where the time ran out.
+     */
+    public static void expire(Cause cause) {
+        EXPIRED.get(cause).increment();
+        LOGGER.warning("Request deadline expired in " + cause + ".");
+    }
+
+    /**
+     * Gets the number of requests that ran out of time in a step.
+     *
+     * @param cause The step.
+     * @return the expired requests.
+     */
+    public static long getExpiredCount(Cause cause) {
+        return EXPIRED.get(cause).sum();
+    }
+
+    /**
+     * Gets the time a request has, REQUEST_TIMEOUT.
+     *
+     * @param unit The unit of the result.
+     * @return the budget, 0 if the requests have no deadline.
+     */
+    public static long getBudget(TimeUnit unit) {
+        return unit.convert(BUDGET, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Reads REQUEST_TIMEOUT from the configuration file.
+     *
+     * @return the budget in nanoseconds, 0 if it is not set.
+     */
+    private static long budget() {
+        ResourceBundle configFile = ResourceBundle.getBundle("config.config");
+        return configFile.containsKey("REQUEST_TIMEOUT")
+                ? TimeUnit.MILLISECONDS.toNanos(Long.parseLong(configFile.getString("REQUEST_TIMEOUT").trim())) : 0;
+    }
+}
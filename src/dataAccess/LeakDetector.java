@@ -0,0 +1,96 @@
+package dataAccess;
+
+import java.util.Collection;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import metrics.Metrics;
+
+/**
+ * Finds the connections of a pool that are not returned. When
+ * LEAK_DETECTION_THRESHOLD is greater than 0 every borrow keeps the stack of
+ * the thread that took the connection, and a connection held for longer than
+ * the threshold is reported once in the log with that stack. Keeping the
+ * stack makes every borrow slower, so it is off with 0.
+ *
+ * @author Irati
+ */
+class LeakDetector {
+
+    private static final Logger LOGGER = Logger.getLogger("package dataAcess");
+    private final String name;
+    private final long threshold;
+    private final LongAdder leaks = new LongAdder();
+
+    /**
+     * Creates the detector of a pool.
+     *
+     * @param name The name of the pool.
+     * @param threshold The milliseconds a connection can be held, 0 for no
+     * detection.
+     */
+    LeakDetector(String name, long threshold) {
+        this.name = name;
+        this.threshold = threshold;
+        if (threshold > 0) {
+            Metrics.gauge("pool." + name + ".leaks", leaks::sum);
+        }
+    }
+
+    /**
+     * Checks the borrowed connections of the pool periodically, if the
+     * detection is on.
+     *
+     * @param executor The executor of the pool.
+     * @param borrowed The borrowed connections.
+     */
+    void start(ScheduledExecutorService executor, Collection<PooledConnection> borrowed) {
+        if (threshold > 0) {
+            long period = Math.max(threshold / 2, 100);
+            executor.scheduleWithFixedDelay(() -> check(borrowed), period, period, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Records who borrows a connection.
+     *
+     * @param pooled The connection, with its borrow time already set.
+     */
+    void onBorrow(PooledConnection pooled) {
+        if (threshold > 0) {
+            pooled.leakReported = false;
+            pooled.borrowTrace = new Throwable("Borrowed by " + Thread.currentThread().getName());
+        }
+    }
+
+    /**
+     * Forgets who borrowed a connection, and says if a reported leak has been
+     * returned.
+     *
+     * @param pooled The connection.
+     */
+    void onReturn(PooledConnection pooled) {
+        if (threshold > 0) {
+            pooled.borrowTrace = null;
+            if (pooled.leakReported) {
+                LOGGER.info("Connection of the " + name + " pool returned after "
+                        + (System.currentTimeMillis() - pooled.borrowedAt) + " ms.");
+            }
+        }
+    }
+
+    private void check(Collection<PooledConnection> borrowed) {
+        long now = System.currentTimeMillis();
+        for (PooledConnection pooled : borrowed) {
+            Throwable trace = pooled.borrowTrace;
+            if (!pooled.leakReported && trace != null && now - pooled.borrowedAt > threshold) {
+                pooled.leakReported = true;
+                leaks.increment();
+                LOGGER.log(Level.WARNING, "Connection of the " + name + " pool held for "
+                        + (now - pooled.borrowedAt) + " ms, it may have leaked.", trace);
+            }
+        }
+    }
+}
@@ -0,0 +1,235 @@
+package dataAccess;
+
+import exceptions.ServerErrorException;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ResourceBundle;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A Bloom filter of the logins in res_users. If the filter says that a login
+ * does not exist it is sure, so the sign up does not need to look for the
+ * email in the database; if it says that it may exist the database is asked.
+ * The filter is sized from EXPECTED_USERS and LOGIN_INDEX_FPP, it is loaded in
+ * the background when the server starts and can be rebuilt while the server is
+ * running. Until it is loaded every login may exist.
+ *
+ * @author Olivia
+ */
+public class LoginIndex {
+
+    private static volatile LoginIndex index;
+    private static final Logger LOGGER = Logger.getLogger("package dataAcess");
+    private static final String SELECTLOGINS = "SELECT login FROM public.res_users";
+    private final boolean enabled;
+    private final int expectedUsers;
+    private final double falsePositives;
+    /**
+     * The filter in use, null until the first load ends.
+     */
+    private volatile Filter filter;
+    /**
+     * The filter being loaded, it also receives the new logins.
+     */
+    private volatile Filter loading;
+
+    private LoginIndex() {
+        ResourceBundle configFile = ResourceBundle.getBundle("config.config");
+        enabled = configFile.containsKey("LOGIN_INDEX") && Boolean.parseBoolean(configFile.getString("LOGIN_INDEX").trim());
+        expectedUsers = configFile.containsKey("EXPECTED_USERS")
+                ? Integer.parseInt(configFile.getString("EXPECTED_USERS").trim()) : 100000;
+        falsePositives = configFile.containsKey("LOGIN_INDEX_FPP")
+                ? Double.parseDouble(configFile.getString("LOGIN_INDEX_FPP").trim()) : 0.01;
+    }
+
+    /**
+     * Retrieves the singleton instance of the index.
+     *
+     * @return the index.
+     */
+    public static LoginIndex getIndex() {
+        LoginIndex current = index;
+        if (current == null) {
+            current = createIndex();
+        }
+        return current;
+    }
+
+    private static synchronized LoginIndex createIndex() {
+        if (index == null) {
+            index = new LoginIndex();
+        }
+        return index;
+    }
+
+    /**
+     * Checks if a login may be in the database.
+     *
+     * @param login The login.
+     * @return false only if the login is surely not in the database.
+     */
+    public boolean mightExist(String login) {
+        Filter current = filter;
+        return current == null || login == null || current.mightContain(login);
+    }
+
+    /**
+     * Adds a login that has been inserted in the database.
+     *
+     * @param login The login.
+     */
+    public void add(String login) {
+        if (login == null) {
+            return;
+        }
+        Filter current = filter;
+        if (current != null) {
+            current.add(login);
+        }
+        Filter next = loading;
+        if (next != null) {
+            next.add(login);
+        }
+    }
+
+    /**
+     * Loads the index in a background thread if LOGIN_INDEX is true.
+     */
+    public void load() {
+        if (!enabled) {
+            return;
+        }
+        Thread thread = new Thread(() -> {
+            try {
+                rebuild();
+            } catch (ServerErrorException ex) {
+                LOGGER.log(Level.SEVERE, null, ex);
+            }
+        }, "login-index");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Reads all the logins of the database into a new filter and replaces the
+     * old one. The sign ups made while it is loading are added to both.
+     *
+     * @throws ServerErrorException If the logins cannot be read.
+     */
+    public synchronized void rebuild() throws ServerErrorException {
+        LOGGER.info("Loading the login index.");
+        Filter next = new Filter(expectedUsers, falsePositives);
+        // From now on the new logins are added to the filter being loaded
+        loading = next;
+        PoolCreatable pool = PoolFactory.getPool();
+        Connection con = pool.takeConnection();
+        int count = 0;
+        try {
+            // Without autocommit the driver reads the logins in pages
+            con.setAutoCommit(false);
+            try (PreparedStatement stmt = con.prepareStatement(SELECTLOGINS)) {
+                stmt.setFetchSize(10000);
+                try (ResultSet rs = stmt.executeQuery()) {
+                    while (rs.next()) {
+                        next.add(rs.getString(1));
+                        count++;
+                    }
+                }
+            }
+            con.commit();
+        } catch (SQLException ex) {
+            loading = null;
+            throw new ServerErrorException(ex.getMessage());
+        } finally {
+            pool.returnConnection(con);
+        }
+        filter = next;
+        loading = null;
+        if (count > expectedUsers) {
+            LOGGER.warning("There are " + count + " users and EXPECTED_USERS is " + expectedUsers
+                    + ", the login index gives more false positives than configured.");
+        }
+        LOGGER.info("Login index loaded with " + count + " logins.");
+    }
+
+    /**
+     * A Bloom filter whose bits can be set by several threads without locks.
+     */
+    static class Filter {
+
+        private final AtomicLongArray bits;
+        private final long size;
+        private final int hashes;
+
+        /**
+         * Creates the filter with the optimum number of bits and hashes.
+         *
+         * @param expected The expected number of logins.
+         * @param probability The accepted probability of a false positive.
+         */
+        Filter(int expected, double probability) {
+            long optimum = (long) Math.ceil(-Math.max(expected, 1) * Math.log(probability) / (Math.log(2) * Math.log(2)));
+            long words = Math.max((optimum + 63) / 64, 1);
+            bits = new AtomicLongArray((int) Math.min(words, Integer.MAX_VALUE));
+            size = bits.length() * 64L;
+            hashes = Math.max((int) Math.round((double) size / Math.max(expected, 1) * Math.log(2)), 1);
+        }
+
+        void add(String login) {
+            long hash = hash(login);
+            long h1 = hash;
+            long h2 = mix(hash);
+            for (int i = 0; i < hashes; i++) {
+                long bit = Math.floorMod(h1 + i * h2, size);
+                int word = (int) (bit >>> 6);
+                long mask = 1L << bit;
+                long current;
+                do {
+                    current = bits.get(word);
+                    if ((current & mask) != 0) {
+                        break;
+                    }
+                } while (!bits.compareAndSet(word, current, current | mask));
+            }
+        }
+
+        boolean mightContain(String login) {
+            long hash = hash(login);
+            long h1 = hash;
+            long h2 = mix(hash);
+            for (int i = 0; i < hashes; i++) {
+                long bit = Math.floorMod(h1 + i * h2, size);
+                if ((bits.get((int) (bit >>> 6)) & (1L << bit)) == 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * FNV-1a hash of the UTF-8 bytes of the login.
+         */
+        private static long hash(String login) {
+            long hash = 0xcbf29ce484222325L;
+            for (byte b : login.getBytes(StandardCharsets.UTF_8)) {
+                hash ^= b & 0xFF;
+                hash *= 0x100000001b3L;
+            }
+            return mix(hash);
+        }
+
+        /**
+         * Spreads the bits of a hash (the finalizer of SplitMix64).
+         */
+        private static long mix(long z) {
+            z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+            z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+            return z ^ (z >>> 31);
+        }
+    }
+}
@@ -0,0 +1,311 @@
+package dataAccess;
+
+import exceptions.ServerErrorException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.security.spec.InvalidKeySpecException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.ResourceBundle;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import metrics.Histogram;
+import metrics.Metrics;
+
+/**
+ * Hashes and verifies the passwords of the users with PBKDF2-SHA512. The
+ * hashes are stored as "$pbkdf2-sha512$rounds$salt$hash", the format of
+ * passlib, so Odoo can also check them. Hashing is slow on purpose, so it runs
+ * in its own threads, HASH_THREADS or one per processor, with a queue of
+ * HASH_QUEUE_SIZE tasks: a flood of sign ins waits there and never takes the
+ * threads that serve the sockets. A password stored before the hashing is
+ * still accepted, and the DAO replaces it with its hash.
+ *
+ * @author Olivia
+ */
+public class PasswordHasher {
+
+    private static volatile PasswordHasher hasher;
+    private static final Logger LOGGER = Logger.getLogger("package dataAcess");
+    private static final String PREFIX = "$pbkdf2-sha512$";
+    private static final String ALGORITHM = "PBKDF2WithHmacSHA512";
+    private static final int SALT_BYTES = 16;
+    private static final int HASH_BYTES = 64;
+    private static final SecureRandom RANDOM = new SecureRandom();
+    private static final Histogram HASH = Metrics.histogram("password.hash");
+    private static final Histogram VERIFY = Metrics.histogram("password.verify");
+    private final int rounds;
+    private final int threads;
+    private final ThreadPoolExecutor executor;
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder legacy = new LongAdder();
+    /**
+     * Hash compared with the password of the logins that do not exist, so
+     * they take as long as the ones that exist.
+     */
+    private final String dummy;
+
+    private PasswordHasher() {
+        ResourceBundle configFile = ResourceBundle.getBundle("config.config");
+        rounds = configFile.containsKey("PASSWORD_ROUNDS")
+                ? Integer.parseInt(configFile.getString("PASSWORD_ROUNDS").trim()) : 25000;
+        threads = Math.max(configFile.containsKey("HASH_THREADS")
+                ? Integer.parseInt(configFile.getString("HASH_THREADS").trim())
+                : Runtime.getRuntime().availableProcessors(), 1);
+        int queueSize = configFile.containsKey("HASH_QUEUE_SIZE")
+                ? Integer.parseInt(configFile.getString("HASH_QUEUE_SIZE").trim()) : 200;
+        AtomicInteger count = new AtomicInteger();
+        executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(Math.max(queueSize, 1)), r -> {
+                    Thread thread = new Thread(r, "password-hasher-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        dummy = encode(rounds, salt(), pbkdf2("".toCharArray(), salt(), rounds));
+        Metrics.gauge("password.queue", this::getQueueDepth);
+        Metrics.gauge("password.active", this::getActiveCount);
+        Metrics.gauge("password.completed", this::getCompletedCount);
+        Metrics.gauge("password.legacy", legacy::sum);
+        Metrics.gauge("password.rejected", this::getRejectedCount);
+    }
+
+    /**
+     * Retrieves the singleton instance of the hasher.
+     *
+     * @return the hasher.
+     */
+    public static PasswordHasher getHasher() {
+        PasswordHasher current = hasher;
+        if (current == null) {
+            current = createHasher();
+        }
+        return current;
+    }
+
+    private static synchronized PasswordHasher createHasher() {
+        if (hasher == null) {
+            hasher = new PasswordHasher();
+        }
+        return hasher;
+    }
+
+    /**
+     * Hashes a password with a new salt.
+     *
+     * @param password The password.
+     * @return the hash to store.
+     * @throws ServerErrorException If the hashing queue is full.
+     */
+    public String hash(String password) throws ServerErrorException {
+        long start = System.nanoTime();
+        String hash = get(submit(() -> hashNow(password)));
+        HASH.recordSince(start);
+        return hash;
+    }
+
+    /**
+     * Hashes several passwords using all the threads of the hasher, without
+     * filling its queue.
+     *
+     * @param passwords The passwords.
+     * @return the hashes, in the same order.
+     * @throws ServerErrorException If the hashing queue is full.
+     */
+    public List<String> hashAll(List<String> passwords) throws ServerErrorException {
+        List<String> hashes = new ArrayList<>(passwords.size());
+        List<Future<String>> window = new ArrayList<>(threads);
+        for (int i = 0; i < passwords.size(); i += threads) {
+            window.clear();
+            for (String password : passwords.subList(i, Math.min(i + threads, passwords.size()))) {
+                window.add(submit(() -> hashNow(password)));
+            }
+            for (Future<String> future : window) {
+                hashes.add(get(future));
+            }
+        }
+        return hashes;
+    }
+
+    /**
+     * Checks a password against the stored hash. If the login does not exist
+     * the stored hash is null and the password is compared with a dummy hash.
+     * A stored value that starts with $ is a hash of another scheme and never
+     * matches; any other value is a password stored before the hashing, and
+     * every sign in with one is logged and counted in password.legacy.
+     *
+     * @param password The password received.
+     * @param stored The stored hash or password, or null.
+     * @return true if the password is correct.
+     * @throws ServerErrorException If the hashing queue is full.
+     */
+    public boolean verify(String password, String stored) throws ServerErrorException {
+        if (password == null) {
+            return false;
+        }
+        if (stored != null && !stored.startsWith(PREFIX)) {
+            if (stored.startsWith("$")) {
+                // Sending the hash itself must not sign in
+                LOGGER.warning("Stored password hash of an unknown scheme.");
+                return false;
+            }
+            // A password stored before the hashing
+            boolean matches = MessageDigest.isEqual(stored.getBytes(StandardCharsets.UTF_8),
+                    password.getBytes(StandardCharsets.UTF_8));
+            if (matches) {
+                legacy.increment();
+                LOGGER.warning("Sign in with a password stored before the hashing, it is hashed again.");
+            }
+            return matches;
+        }
+        long start = System.nanoTime();
+        boolean matches = get(submit(() -> verifyNow(password, stored == null ? dummy : stored)));
+        VERIFY.recordSince(start);
+        return stored != null && matches;
+    }
+
+    /**
+     * Checks if a stored password must be hashed again: it is not hashed or
+     * it was hashed with other rounds.
+     *
+     * @param stored The stored hash or password.
+     * @return true if it must be replaced.
+     */
+    public boolean needsRehash(String stored) {
+        if (stored == null || !stored.startsWith(PREFIX)) {
+            return true;
+        }
+        String[] parts = stored.split("\\$");
+        return parts.length != 5 || !parts[2].equals(Integer.toString(rounds));
+    }
+
+    /**
+     * Gets the number of passwords waiting for a thread.
+     *
+     * @return the depth of the queue.
+     */
+    public int getQueueDepth() {
+        return executor.getQueue().size();
+    }
+
+    /**
+     * Gets the number of passwords being hashed.
+     *
+     * @return the busy threads.
+     */
+    public int getActiveCount() {
+        return executor.getActiveCount();
+    }
+
+    /**
+     * Gets the number of hashes and verifications done.
+     *
+     * @return the completed tasks.
+     */
+    public long getCompletedCount() {
+        return executor.getCompletedTaskCount();
+    }
+
+    /**
+     * Gets the number of passwords rejected because the queue was full.
+     *
+     * @return the rejected tasks.
+     */
+    public long getRejectedCount() {
+        return rejected.sum();
+    }
+
+    private <T> Future<T> submit(Callable<T> task) throws ServerErrorException {
+        try {
+            return executor.submit(task);
+        } catch (RejectedExecutionException ex) {
+            rejected.increment();
+            LOGGER.warning("Password queue full, " + getQueueDepth() + " passwords waiting.");
+            throw new ServerErrorException("Too many passwords waiting to be checked.");
+        }
+    }
+
+    private static <T> T get(Future<T> future) throws ServerErrorException {
+        try {
+            long remaining = Deadline.remaining(TimeUnit.NANOSECONDS);
+            return remaining == Long.MAX_VALUE ? future.get() : future.get(remaining, TimeUnit.NANOSECONDS);
+        } catch (TimeoutException ex) {
+            // The request has no time left, its password is not needed anymore
+            future.cancel(false);
+            Deadline.expire(Deadline.Cause.HASH);
+            throw new ServerErrorException("Timeout waiting for the password.");
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new ServerErrorException(ex.getMessage());
+        } catch (ExecutionException ex) {
+            throw new ServerErrorException(ex.getCause().getMessage());
+        }
+    }
+
+    private String hashNow(String password) {
+        byte[] salt = salt();
+        return encode(rounds, salt, pbkdf2(password.toCharArray(), salt, rounds));
+    }
+
+    private static boolean verifyNow(String password, String stored) {
+        String[] parts = stored.split("\\$");
+        if (parts.length != 5) {
+            return false;
+        }
+        try {
+            int storedRounds = Integer.parseInt(parts[2]);
+            byte[] salt = ab64Decode(parts[3]);
+            byte[] expected = ab64Decode(parts[4]);
+            return MessageDigest.isEqual(expected, pbkdf2(password.toCharArray(), salt, storedRounds));
+        } catch (IllegalArgumentException ex) {
+            LOGGER.warning("Stored password hash is not valid.");
+            return false;
+        }
+    }
+
+    private static byte[] salt() {
+        byte[] salt = new byte[SALT_BYTES];
+        RANDOM.nextBytes(salt);
+        return salt;
+    }
+
+    private static byte[] pbkdf2(char[] password, byte[] salt, int rounds) {
+        PBEKeySpec spec = new PBEKeySpec(password, salt, rounds, HASH_BYTES * 8);
+        try {
+            return SecretKeyFactory.getInstance(ALGORITHM).generateSecret(spec).getEncoded();
+        } catch (NoSuchAlgorithmException | InvalidKeySpecException ex) {
+            // Every JVM since Java 8 has PBKDF2WithHmacSHA512
+            throw new IllegalStateException(ex);
+        } finally {
+            spec.clearPassword();
+        }
+    }
+
+    private static String encode(int rounds, byte[] salt, byte[] hash) {
+        return PREFIX + rounds + "$" + ab64Encode(salt) + "$" + ab64Encode(hash);
+    }
+
+    /**
+     * The base 64 of passlib: without padding and with '.' instead of '+'.
+     */
+    private static String ab64Encode(byte[] bytes) {
+        return Base64.getEncoder().withoutPadding().encodeToString(bytes).replace('+', '.');
+    }
+
+    private static byte[] ab64Decode(String text) {
+        return Base64.getDecoder().decode(text.replace('.', '+'));
+    }
+}
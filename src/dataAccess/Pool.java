@@ -2,106 +2,490 @@ package dataAccess;
 
 import exceptions.ServerErrorException;
 import java.sql.Connection;
-import java.sql.DriverManager;
+import java.sql.PreparedStatement;
 import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.ResourceBundle;
-import java.util.Stack;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import metrics.Histogram;
+import metrics.Metrics;
 
 /**
  * The `Pool` class represents a connection pool for managing database
- * connections.
+ * connections. The pool never opens more than POOL_MAX_SIZE connections, a
+ * borrower waits at most POOL_BORROW_TIMEOUT milliseconds for one, and a
+ * background thread closes the connections idle or alive for too long, checks
+ * the idle ones and keeps at least POOL_MIN_SIZE open.
  *
  * @author Irati
  * @author Olivia
  */
 public class Pool implements PoolCreatable {
 
-    private ResourceBundle configFile;
-    private String db_user;
-    private String db_pass;
-    private String url;
-    private static Stack<Connection> connections;
+    private final ConnectionSource source;
+    private final int maxSize;
+    private final int minSize;
+    private final long borrowTimeout;
+    private final boolean validateOnBorrow;
+    private final int validationTimeout;
+    private final long maxLifetime;
+    private final long idleTimeout;
+    private final long evictionInterval;
+    private final int statementCacheSize;
+    /**
+     * Idle connections, the most recently used first.
+     */
+    private final ArrayDeque<PooledConnection> idle = new ArrayDeque<>();
+    private final Map<Connection, PooledConnection> borrowed = new ConcurrentHashMap<>();
+    /**
+     * Connections open or being opened, idle and borrowed.
+     */
+    private int total = 0;
+    private long created = 0;
+    /**
+     * Borrowers waiting for a connection, changed with the lock held.
+     */
+    private int waiting = 0;
+    private final LongAdder waitTime = new LongAdder();
+    private final ScheduledExecutorService evictor;
+    private final CircuitBreaker breaker;
+    private final LeakDetector leaks;
+    private static final Histogram BORROW = Metrics.histogram("pool.borrow");
     private static final Logger LOGGER = Logger.getLogger("package dataAcess");
 
     /**
-     * Constructs a new connection pool and initialises it.
+     * Constructs a new connection pool for the database of the configuration
+     * file and initialises it.
      */
     public Pool() {
-        connections = new Stack<>();
-        configFile = ResourceBundle.getBundle("config.config");
-        url = configFile.getString("URL");
-        db_user = configFile.getString("DB_USER");
-        db_pass = configFile.getString("DB_PASSWORD");
+        this(ResourceBundle.getBundle("config.config"));
+    }
+
+    private Pool(ResourceBundle configFile) {
+        this(ConnectionSource.of(configFile.getString("URL"), configFile.getString("DB_USER"),
+                configFile.getString("DB_PASSWORD")), configFile);
+    }
+
+    /**
+     * Constructs a new connection pool that opens its connections from a
+     * source, with the sizes and times of the configuration file.
+     *
+     * @param source Where the connections are opened.
+     * @param configFile The configuration file.
+     */
+    public Pool(ConnectionSource source, ResourceBundle configFile) {
+        this("pool", source, configFile);
+    }
+
+    /**
+     * Constructs a new named connection pool that opens its connections from
+     * a source, with the sizes and times of the configuration file.
+     *
+     * @param name The name of the pool, used in the log and its threads.
+     * @param source Where the connections are opened.
+     * @param configFile The configuration file.
+     */
+    public Pool(String name, ConnectionSource source, ResourceBundle configFile) {
+        PoolConfig config = new PoolConfig(configFile);
+        this.source = source;
+        maxSize = config.maxSize;
+        minSize = config.minSize;
+        borrowTimeout = config.borrowTimeout;
+        validateOnBorrow = config.validateOnBorrow;
+        validationTimeout = config.validationTimeout;
+        maxLifetime = config.maxLifetime;
+        idleTimeout = config.idleTimeout;
+        evictionInterval = config.evictionInterval;
+        statementCacheSize = config.statementCacheSize;
+        breaker = new CircuitBreaker(name, config.breakerFailures, config.breakerOpenTime);
+        leaks = new LeakDetector(name, config.leakDetectionThreshold);
 
+        evictor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, name + "-evictor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        evictor.scheduleWithFixedDelay(this::evict, evictionInterval, evictionInterval, TimeUnit.MILLISECONDS);
+        leaks.start(evictor, borrowed.values());
     }
 
     /**
-     * Starts and connects an SSH session to connect to the remote DB server.
-     * Retrieves a database connection from the pool. If the pool is empty, a
-     * new connection is created.
+     * Retrieves a database connection from the pool. If there is no idle
+     * connection a new one is created, unless the pool is full: then it waits
+     * until a connection is returned or the borrow timeout passes, or the
+     * deadline of the request if it comes first.
      *
      * @return A database connection.
-     * @throws exceptions.ServerErrorException
+     * @throws exceptions.ServerErrorException if no connection can be created
+     * or the borrow timeout passes.
      */
     @Override
-    public synchronized Connection takeConnection() throws ServerErrorException {
-        Connection con = null;
+    public Connection takeConnection() throws ServerErrorException {
+        if (!breaker.allowRequest()) {
+            throw new ServerErrorException("The database is not available.");
+        }
+        if (Deadline.isExpired()) {
+            Deadline.expire(Deadline.Cause.POOL);
+            throw new ServerErrorException("The request has no time left.");
+        }
+        // The request may have less time left than the borrow timeout
+        long begin = System.nanoTime();
+        long deadline = begin + TimeUnit.MILLISECONDS.toNanos(Deadline.bound(borrowTimeout));
+        while (true) {
+            PooledConnection pooled;
+            synchronized (this) {
+                while ((pooled = idle.pollFirst()) == null && total >= maxSize) {
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) {
+                        if (Deadline.isExpired()) {
+                            Deadline.expire(Deadline.Cause.POOL);
+                        }
+                        throw new ServerErrorException("Timeout waiting for a pool connection.");
+                    }
+                    waiting++;
+                    long start = System.nanoTime();
+                    try {
+                        TimeUnit.NANOSECONDS.timedWait(this, remaining);
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                        throw new ServerErrorException(ex.getMessage());
+                    } finally {
+                        waiting--;
+                        waitTime.add(System.nanoTime() - start);
+                    }
+                }
+                if (pooled == null) {
+                    // Reserves the place of the connection that is going to be created
+                    total++;
+                }
+            }
 
-        //Checks if the stack is empty
-        if (connections.isEmpty()) {
-            try {
-                //Creates a new connection
-                con = DriverManager.getConnection(url, db_user, db_pass);
+            if (pooled == null) {
+                pooled = open();
                 LOGGER.info("First Pool connection.");
-
-            } catch (SQLException ex) {
-                LOGGER.getLogger(Pool.class.getName()).log(Level.SEVERE, null, ex);
-                throw new ServerErrorException(ex.getMessage());
+            } else if (!isUsable(pooled)) {
+                discard(pooled);
+                continue;
+            } else {
+                //Gets the connection from the stack
+                LOGGER.info("Getting a pool connection from the Pool.");
+            }
+            pooled.borrowedAt = System.currentTimeMillis();
+            leaks.onBorrow(pooled);
+            synchronized (this) {
+                borrowed.put(pooled.connection, pooled);
             }
-        } else {
-            //Gets the connection from the stack
-            LOGGER.info("Getting a pool connection from the Pool.");
-            con = connections.pop();
+            BORROW.recordSince(begin);
+            //Returns the connection
+            return pooled.connection;
         }
-        //Returns the connection
-        return con;
     }
 
     /**
-     * Returns a database connection to the pool for reuse.
+     * Returns a database connection to the pool for reuse. Connections that
+     * are closed or too old are discarded instead.
      *
      * @param con The database connection to be returned to the pool.
      */
     @Override
-    public synchronized void returnConnection(Connection con) {
+    public void returnConnection(Connection con) {
         //Checks if connection received is null
-
-        if (con != null) {
+        if (con == null) {
+            return;
+        }
+        PooledConnection pooled;
+        synchronized (this) {
+            pooled = borrowed.remove(con);
+        }
+        if (pooled == null) {
+            // Not borrowed from this pool or already closed by closeAllConnections
+            close(con);
+            return;
+        }
+        leaks.onReturn(pooled);
+        long now = System.currentTimeMillis();
+        try {
+            if (con.isClosed()) {
+                // The driver closes the connections it has lost
+                breaker.onFailure();
+                discard(pooled);
+                return;
+            }
+            breaker.onSuccess();
+            if (pooled.isExpired(maxLifetime, now)) {
+                discard(pooled);
+                return;
+            }
+            if (!con.getAutoCommit()) {
+                // The next borrower must not inherit an open transaction
+                con.rollback();
+                con.setAutoCommit(true);
+            }
+        } catch (SQLException ex) {
+            LOGGER.log(Level.SEVERE, null, ex);
+            discard(pooled);
+            return;
+        }
+        pooled.statements.release();
+        pooled.lastUsed = now;
+        synchronized (this) {
             //Adds the connection to the stack
-            connections.push(con);
-            LOGGER.info("Returning a pool connection to the Pool.");
+            idle.addFirst(pooled);
+            notify();
         }
+        LOGGER.info("Returning a pool connection to the Pool.");
     }
 
     /**
-     * Closes all connections in the pool and clears the pool.
+     * Gets a prepared statement of a borrowed connection from its statement
+     * cache.
+     *
+     * @param con A connection borrowed from this pool.
+     * @param sql The SQL text.
+     * @return the prepared statement.
+     * @throws SQLException If the statement cannot be prepared.
+     */
+    @Override
+    public PreparedStatement prepareStatement(Connection con, String sql) throws SQLException {
+        PooledConnection pooled = borrowed.get(con);
+        if (pooled == null) {
+            throw new SQLException("The connection is not borrowed from this pool.");
+        }
+        return pooled.statements.prepare(con, sql);
+    }
+
+    /**
+     * Closes all connections in the pool, the idle ones and the borrowed
+     * ones, and clears the pool. A borrowed connection fails when it is used
+     * again and is discarded when it is returned.
      */
     @Override
     public void closeAllConnections() {
         //Message for the user
         LOGGER.info("Closing all Pool connections.");
+        List<Connection> connections = new ArrayList<>();
+        synchronized (this) {
+            for (PooledConnection pooled : idle) {
+                connections.add(pooled.connection);
+            }
+            connections.addAll(borrowed.keySet());
+            total -= connections.size();
+            idle.clear();
+            borrowed.clear();
+            notifyAll();
+        }
         //Closes the connections
         for (Connection con : connections) {
+            close(con);
+        }
+    }
+
+    /**
+     * Gets the number of idle connections.
+     *
+     * @return the idle connections.
+     */
+    @Override
+    public synchronized int getIdleCount() {
+        return idle.size();
+    }
+
+    /**
+     * Gets the number of borrowed connections.
+     *
+     * @return the borrowed connections.
+     */
+    @Override
+    public int getBorrowedCount() {
+        return borrowed.size();
+    }
+
+    /**
+     * Gets the number of connections created since the pool started.
+     *
+     * @return the created connections.
+     */
+    @Override
+    public synchronized long getCreatedCount() {
+        return created;
+    }
+
+    /**
+     * Gets the number of borrowers waiting for a connection.
+     *
+     * @return the waiting borrowers.
+     */
+    @Override
+    public synchronized int getWaitingCount() {
+        return waiting;
+    }
+
+    @Override
+    public CircuitBreaker getBreaker() {
+        return breaker;
+    }
+
+    /**
+     * Gets the time waited for connections since the pool started.
+     *
+     * @return the waited nanoseconds.
+     */
+    @Override
+    public long getWaitTime() {
+        return waitTime.sum();
+    }
+
+    /**
+     * Opens a new connection. The place in the pool must already be
+     * reserved.
+     *
+     * @return the new connection.
+     * @throws ServerErrorException if the connection cannot be opened.
+     */
+    private PooledConnection open() throws ServerErrorException {
+        try {
+            //Creates a new connection
+            PooledConnection pooled = new PooledConnection(source.open(), statementCacheSize);
+            breaker.onSuccess();
+            synchronized (this) {
+                created++;
+            }
+            return pooled;
+        } catch (SQLException ex) {
+            breaker.onFailure();
+            Logger.getLogger(Pool.class.getName()).log(Level.SEVERE, null, ex);
+            synchronized (this) {
+                total--;
+                notify();
+            }
+            throw new ServerErrorException(ex.getMessage());
+        }
+    }
+
+    /**
+     * Checks an idle connection before lending it.
+     *
+     * @param pooled The connection.
+     * @return true if it can be used.
+     */
+    private boolean isUsable(PooledConnection pooled) {
+        if (pooled.isExpired(maxLifetime, System.currentTimeMillis())) {
+            return false;
+        }
+        try {
+            return !validateOnBorrow || pooled.connection.isValid(validationTimeout);
+        } catch (SQLException ex) {
+            return false;
+        }
+    }
+
+    /**
+     * Closes a connection and frees its place in the pool.
+     *
+     * @param pooled The connection.
+     */
+    private void discard(PooledConnection pooled) {
+        close(pooled.connection);
+        synchronized (this) {
+            total--;
+            notify();
+        }
+    }
+
+    /**
+     * Closes the idle connections that have expired, checks the rest and
+     * opens connections until the minimum size is reached.
+     */
+    private void evict() {
+        long now = System.currentTimeMillis();
+        List<PooledConnection> evicted = new ArrayList<>();
+        List<PooledConnection> toValidate = new ArrayList<>();
+        synchronized (this) {
+            Iterator<PooledConnection> iterator = idle.descendingIterator();
+            while (iterator.hasNext()) {
+                PooledConnection pooled = iterator.next();
+                boolean tooIdle = idleTimeout > 0 && now - pooled.lastUsed > idleTimeout
+                        && total - evicted.size() > minSize;
+                if (tooIdle || pooled.isExpired(maxLifetime, now)) {
+                    iterator.remove();
+                    evicted.add(pooled);
+                } else if (now - pooled.lastUsed >= evictionInterval) {
+                    // Not used since the last run, it may have been dropped by the database
+                    iterator.remove();
+                    toValidate.add(pooled);
+                }
+            }
+        }
+        for (PooledConnection pooled : evicted) {
+            discard(pooled);
+        }
+        // The idle connections are checked outside the lock
+        for (PooledConnection pooled : toValidate) {
+            boolean valid;
+            try {
+                valid = pooled.connection.isValid(validationTimeout);
+            } catch (SQLException ex) {
+                valid = false;
+            }
+            if (valid) {
+                synchronized (this) {
+                    idle.addLast(pooled);
+                    notify();
+                }
+            } else {
+                discard(pooled);
+            }
+        }
+        if (!evicted.isEmpty()) {
+            LOGGER.info("Evicted " + evicted.size() + " Pool connections.");
+        }
+        fill();
+    }
+
+    /**
+     * Opens connections until the pool has its minimum size.
+     */
+    private void fill() {
+        while (breaker.getState() == CircuitBreaker.State.CLOSED) {
+            synchronized (this) {
+                if (total >= minSize) {
+                    return;
+                }
+                total++;
+            }
             try {
-                con.close();
-            } catch (SQLException e) {
-                Logger.getLogger(Pool.class.getName()).log(Level.SEVERE, null, e);
+                PooledConnection pooled = open();
+                synchronized (this) {
+                    idle.addLast(pooled);
+                    notify();
+                }
+            } catch (ServerErrorException ex) {
+                // The database is not reachable, it is tried again later
+                return;
             }
         }
-        //Clears the stack
-        connections.clear();
     }
 
+    /**
+     * Closes a connection logging any error.
+     *
+     * @param con The connection.
+     */
+    static void close(Connection con) {
+        try {
+            con.close();
+        } catch (SQLException e) {
+            Logger.getLogger(Pool.class.getName()).log(Level.SEVERE, null, e);
+        }
+    }
 }
@@ -0,0 +1,58 @@
+package dataAccess;
+
+import java.util.ResourceBundle;
+
+/**
+ * The sizes and times of a pool read from the configuration file.
+ *
+ * @author Irati
+ */
+class PoolConfig {
+
+    final int maxSize;
+    final int minSize;
+    final long borrowTimeout;
+    final boolean validateOnBorrow;
+    final int validationTimeout;
+    final long maxLifetime;
+    final long idleTimeout;
+    final long evictionInterval;
+    final int statementCacheSize;
+    final int breakerFailures;
+    final long breakerOpenTime;
+    final long leakDetectionThreshold;
+    private final ResourceBundle configFile;
+
+    /**
+     * Reads the pool properties, using a default value for the missing ones.
+     *
+     * @param configFile The configuration file.
+     */
+    PoolConfig(ResourceBundle configFile) {
+        this.configFile = configFile;
+        maxSize = getInt("POOL_MAX_SIZE", 20);
+        minSize = Math.min(getInt("POOL_MIN_SIZE", 0), maxSize);
+        borrowTimeout = getInt("POOL_BORROW_TIMEOUT", 5000);
+        validateOnBorrow = configFile.containsKey("POOL_VALIDATE_ON_BORROW")
+                && Boolean.parseBoolean(configFile.getString("POOL_VALIDATE_ON_BORROW").trim());
+        validationTimeout = getInt("POOL_VALIDATION_TIMEOUT", 2);
+        maxLifetime = getInt("POOL_MAX_LIFETIME", 1800000);
+        idleTimeout = getInt("POOL_IDLE_TIMEOUT", 600000);
+        evictionInterval = getInt("POOL_EVICTION_INTERVAL", 30000);
+        statementCacheSize = getInt("STATEMENT_CACHE_SIZE", 16);
+        breakerFailures = getInt("BREAKER_FAILURES", 5);
+        breakerOpenTime = getInt("BREAKER_OPEN_TIME", 5000);
+        leakDetectionThreshold = getInt("LEAK_DETECTION_THRESHOLD", 0);
+    }
+
+    /**
+     * Reads an optional number of the configuration file.
+     *
+     * @param key The property.
+     * @param defaultValue The value when the property does not exist.
+     * @return the value.
+     */
+    int getInt(String key, int defaultValue) {
+        return configFile.containsKey(key) ? Integer.parseInt(configFile.getString(key).trim()) : defaultValue;
+    }
+}
@@ -2,6 +2,8 @@ package dataAccess;
 
 import exceptions.ServerErrorException;
 import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
 
 /**
  * This interface defines the methods for creating a Pool.
@@ -26,8 +28,65 @@ public interface PoolCreatable {
      */
     public void returnConnection(Connection con);
 
+    /**
+     * Gets a prepared statement of a borrowed connection from its statement
+     * cache. The statement belongs to the pool: the caller closes its result
+     * sets but not the statement.
+     *
+     * @param con A connection borrowed from this pool.
+     * @param sql The SQL text.
+     * @return the prepared statement.
+     * @throws SQLException If the statement cannot be prepared.
+     */
+    public PreparedStatement prepareStatement(Connection con, String sql) throws SQLException;
+
     /**
      * Closes all connections managed by pool.
      */
     public void closeAllConnections();
+
+    /**
+     * Gets the number of connections waiting in the pool.
+     *
+     * @return the idle connections.
+     */
+    public int getIdleCount();
+
+    /**
+     * Gets the number of connections lent and not returned yet.
+     *
+     * @return the borrowed connections.
+     */
+    public int getBorrowedCount();
+
+    /**
+     * Gets the number of connections opened since the pool was created.
+     *
+     * @return the created connections.
+     */
+    public long getCreatedCount();
+
+    /**
+     * Gets the number of borrowers waiting because all the connections are
+     * in use.
+     *
+     * @return the waiting borrowers.
+     */
+    public int getWaitingCount();
+
+    /**
+     * Gets the time the borrowers have waited for a connection since the
+     * pool was created.
+     *
+     * @return the waited nanoseconds.
+     */
+    public long getWaitTime();
+
+    /**
+     * Gets the circuit breaker that stops the borrowers while the database
+     * is not answering.
+     *
+     * @return the breaker of the pool.
+     */
+    public CircuitBreaker getBreaker();
 }
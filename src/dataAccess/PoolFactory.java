@@ -1,8 +1,18 @@
 package dataAccess;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.ResourceBundle;
+import metrics.Metrics;
+
 /**
  * A factory class to create instances of classes that implement the
- * PoolCreatable interface.
+ * PoolCreatable interface. There is a pool named "primary" for the database
+ * of URL and one named "replica1", "replica2"... for every database of
+ * REPLICA_URLS, all with the same user and sizes.
  *
  * @author Irati
  */
@@ -14,19 +24,117 @@ public class PoolFactory {
     public PoolFactory() {
     }
 
-    private static Pool pool;
+    private static volatile Map<String, PoolCreatable> pools;
+    private static volatile ReplicaRouter router;
 
     /**
      * Retrieves a singleton instance of a class that implements the
-     * PoolCreatable interface.
+     * PoolCreatable interface, the pool of the primary database. POOL_MODE =
+     * STRIPED in the configuration file chooses the striped pool, any other
+     * value the locked one.
      *
      * @return A singleton instance of the class that implements the
      * PoolCreatable interface.
      */
-    public static synchronized PoolCreatable getPool() {
-        if (pool == null) {
-            pool = new Pool();
+    public static PoolCreatable getPool() {
+        return getPools().get("primary");
+    }
+
+    /**
+     * Retrieves a pool by its name.
+     *
+     * @param name The name of the pool, "primary" or "replica" and its number.
+     * @return the pool or null if there is no pool with that name.
+     */
+    public static PoolCreatable getPool(String name) {
+        return getPools().get(name);
+    }
+
+    /**
+     * Retrieves the pools of the replicas, in the order of REPLICA_URLS.
+     *
+     * @return the pools, empty if there are no replicas.
+     */
+    public static List<PoolCreatable> getReplicas() {
+        List<PoolCreatable> replicas = new ArrayList<>(getPools().values());
+        replicas.remove(0);
+        return replicas;
+    }
+
+    /**
+     * Retrieves the router that chooses the pool of every read.
+     *
+     * @return the router.
+     */
+    public static ReplicaRouter getRouter() {
+        ReplicaRouter current = router;
+        if (current == null) {
+            synchronized (PoolFactory.class) {
+                if (router == null) {
+                    router = ReplicaRouter.of(getPool(), getReplicas(), ResourceBundle.getBundle("config.config"));
+                }
+                current = router;
+            }
+        }
+        return current;
+    }
+
+    /**
+     * Closes the connections of every pool that has been created.
+     */
+    public static synchronized void closeAllPools() {
+        if (pools != null) {
+            for (PoolCreatable pool : pools.values()) {
+                pool.closeAllConnections();
+            }
+        }
+    }
+
+    /**
+     * Creates the pools the first time, every request asks for them without
+     * taking the lock.
+     */
+    private static Map<String, PoolCreatable> getPools() {
+        Map<String, PoolCreatable> current = pools;
+        if (current == null) {
+            current = createPools();
+        }
+        return current;
+    }
+
+    private static synchronized Map<String, PoolCreatable> createPools() {
+        if (pools == null) {
+            ResourceBundle configFile = ResourceBundle.getBundle("config.config");
+            Map<String, PoolCreatable> created = new LinkedHashMap<>();
+            created.put("primary", create("primary", configFile.getString("URL"), configFile));
+            if (configFile.containsKey("REPLICA_URLS")) {
+                int number = 1;
+                for (String url : configFile.getString("REPLICA_URLS").split(",")) {
+                    if (!url.trim().isEmpty()) {
+                        String name = "replica" + number++;
+                        created.put(name, create(name, url.trim(), configFile));
+                    }
+                }
+            }
+            pools = Collections.unmodifiableMap(created);
+        }
+        return pools;
+    }
+
+    private static PoolCreatable create(String name, String url, ResourceBundle configFile) {
+        ConnectionSource source = ConnectionSource.of(url, configFile.getString("DB_USER"),
+                configFile.getString("DB_PASSWORD"));
+        PoolCreatable pool;
+        if (configFile.containsKey("POOL_MODE") && configFile.getString("POOL_MODE").trim().equals("STRIPED")) {
+            pool = new StripedPool(name, source, configFile);
+        } else {
+            pool = new Pool(name, source, configFile);
         }
+        Metrics.gauge("pool." + name + ".idle", pool::getIdleCount);
+        Metrics.gauge("pool." + name + ".borrowed", pool::getBorrowedCount);
+        Metrics.gauge("pool." + name + ".created", pool::getCreatedCount);
+        Metrics.gauge("pool." + name + ".waiting", pool::getWaitingCount);
+        Metrics.detail("pool." + name + ".breaker", () -> pool.getBreaker().getState().name());
         return pool;
     }
 }
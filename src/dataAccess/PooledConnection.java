@@ -0,0 +1,47 @@
+package dataAccess;
+
+import java.sql.Connection;
+
+/**
+ * A connection of the pool together with its prepared statements and the
+ * times the pool needs to expire, evict and validate it.
+ *
+ * @author Irati
+ */
+class PooledConnection {
+
+    final Connection connection;
+    final StatementCache statements;
+    final long createdAt;
+    long lastUsed;
+    long borrowedAt;
+    /**
+     * The stack of the borrower, only kept if the leak detection is on.
+     */
+    volatile Throwable borrowTrace;
+    volatile boolean leakReported;
+
+    /**
+     * Wraps a new connection.
+     *
+     * @param connection The database connection.
+     * @param cacheSize The size of its prepared statement cache.
+     */
+    PooledConnection(Connection connection, int cacheSize) {
+        this.connection = connection;
+        this.statements = new StatementCache(cacheSize);
+        this.createdAt = System.currentTimeMillis();
+        this.lastUsed = createdAt;
+    }
+
+    /**
+     * Checks if the connection has lived longer than allowed.
+     *
+     * @param maxLifetime The maximum lifetime in milliseconds, 0 for no limit.
+     * @param now The current time in milliseconds.
+     * @return true if the connection must be closed.
+     */
+    boolean isExpired(long maxLifetime, long now) {
+        return maxLifetime > 0 && now - createdAt > maxLifetime;
+    }
+}
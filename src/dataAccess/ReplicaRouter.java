@@ -0,0 +1,181 @@
+package dataAccess;
+
+import java.util.List;
+import java.util.Map;
+import java.util.ResourceBundle;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/**
+ * Chooses the pool of the reads of a sign in. The sign ups always write in
+ * the primary database and the sign ins read from the replicas of
+ * REPLICA_URLS, taking them in turns (ROUND_ROBIN) or the one with the fewest
+ * borrowed and waiting connections (LEAST_LOADED), as REPLICA_ROUTING says.
+ * A replica may not have received a new user yet, so after its sign up a
+ * login is read from the primary for REPLICA_PIN_TIME milliseconds. A replica
+ * whose circuit breaker is open is skipped, and without replicas every read
+ * goes to the primary.
+ *
+ * @author Irati
+ */
+public class ReplicaRouter {
+
+    /**
+     * The ways a replica is chosen.
+     */
+    public enum Routing {
+        /**
+         * The replicas are taken in turns.
+         */
+        ROUND_ROBIN,
+        /**
+         * The replica with the fewest borrowed and waiting connections.
+         */
+        LEAST_LOADED
+    }
+
+    private static final Logger LOGGER = Logger.getLogger("package dataAcess");
+    /**
+     * Pins between two removals of the expired pins.
+     */
+    private static final int SWEEP_INTERVAL = 1024;
+    private final PoolCreatable primary;
+    private final PoolCreatable[] replicas;
+    private final Routing routing;
+    private final long pinTime;
+    private final AtomicInteger next = new AtomicInteger();
+    /**
+     * The logins read from the primary, with the moment their pin ends.
+     */
+    private final Map<String, Long> pins = new ConcurrentHashMap<>();
+    private final AtomicInteger pinCount = new AtomicInteger();
+
+    /**
+     * Creates a router.
+     *
+     * @param primary The pool of the primary database.
+     * @param replicas The pools of the replicas, may be empty.
+     * @param routing How a replica is chosen.
+     * @param pinTime The milliseconds a login is read from the primary after
+     * its sign up.
+     */
+    public ReplicaRouter(PoolCreatable primary, List<PoolCreatable> replicas, Routing routing, long pinTime) {
+        this.primary = primary;
+        this.replicas = replicas.toArray(new PoolCreatable[0]);
+        this.routing = routing;
+        this.pinTime = TimeUnit.MILLISECONDS.toNanos(pinTime);
+        if (!replicas.isEmpty()) {
+            LOGGER.info("Reading the sign ins from " + replicas.size() + " replicas, " + routing + ".");
+        }
+    }
+
+    /**
+     * Creates the router of the configuration file.
+     *
+     * @param primary The pool of the primary database.
+     * @param replicas The pools of the replicas, may be empty.
+     * @param configFile The configuration file.
+     * @return the router.
+     */
+    static ReplicaRouter of(PoolCreatable primary, List<PoolCreatable> replicas, ResourceBundle configFile) {
+        Routing routing = configFile.containsKey("REPLICA_ROUTING")
+                ? Routing.valueOf(configFile.getString("REPLICA_ROUTING").trim()) : Routing.ROUND_ROBIN;
+        long pinTime = configFile.containsKey("REPLICA_PIN_TIME")
+                ? Long.parseLong(configFile.getString("REPLICA_PIN_TIME").trim()) : 5000;
+        return new ReplicaRouter(primary, replicas, routing, pinTime);
+    }
+
+    /**
+     * Chooses the pool to read a login from.
+     *
+     * @param login The login being read.
+     * @return the pool of a replica, or of the primary if the login is
+     * pinned or no replica is available.
+     */
+    public PoolCreatable forRead(String login) {
+        if (replicas.length == 0 || isPinned(login)) {
+            return primary;
+        }
+        PoolCreatable chosen = routing == Routing.LEAST_LOADED ? leastLoaded() : roundRobin();
+        return chosen != null ? chosen : primary;
+    }
+
+    /**
+     * Gets the pool of the primary database, for the writes.
+     *
+     * @return the pool.
+     */
+    public PoolCreatable forWrite() {
+        return primary;
+    }
+
+    /**
+     * Reads a login from the primary for the pin time, after it has been
+     * written there.
+     *
+     * @param login The login.
+     */
+    public void pin(String login) {
+        if (replicas.length == 0 || login == null) {
+            return;
+        }
+        long now = System.nanoTime();
+        pins.put(login, now + pinTime);
+        if (pinCount.incrementAndGet() % SWEEP_INTERVAL == 0) {
+            pins.values().removeIf(until -> until - now <= 0);
+        }
+    }
+
+    /**
+     * Gets the number of logins read from the primary now.
+     *
+     * @return the pinned logins, some may have expired.
+     */
+    public int getPinnedCount() {
+        return pins.size();
+    }
+
+    private boolean isPinned(String login) {
+        if (login == null) {
+            return false;
+        }
+        Long until = pins.get(login);
+        if (until == null) {
+            return false;
+        }
+        if (until - System.nanoTime() > 0) {
+            return true;
+        }
+        pins.remove(login, until);
+        return false;
+    }
+
+    private PoolCreatable roundRobin() {
+        int start = Math.floorMod(next.getAndIncrement(), replicas.length);
+        for (int i = 0; i < replicas.length; i++) {
+            PoolCreatable replica = replicas[(start + i) % replicas.length];
+            if (!replica.getBreaker().isOpen()) {
+                return replica;
+            }
+        }
+        return null;
+    }
+
+    private PoolCreatable leastLoaded() {
+        // Starts at a different replica every time so the ties are spread
+        int start = Math.floorMod(next.getAndIncrement(), replicas.length);
+        PoolCreatable chosen = null;
+        int lowest = Integer.MAX_VALUE;
+        for (int i = 0; i < replicas.length; i++) {
+            PoolCreatable replica = replicas[(start + i) % replicas.length];
+            int load = replica.getBorrowedCount() + replica.getWaitingCount();
+            if (load < lowest && !replica.getBreaker().isOpen()) {
+                chosen = replica;
+                lowest = load;
+            }
+        }
+        return chosen;
+    }
+}
@@ -0,0 +1,242 @@
+package dataAccess;
+
+import exceptions.EmailExistsException;
+import exceptions.ServerErrorException;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.ResourceBundle;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import models.User;
+
+/**
+ * Collects the sign ups of concurrent workers and inserts them in batches,
+ * every batch in one transaction, so a burst of registrations costs one
+ * commit for several users. A batch is closed when it has SIGNUP_BATCH_SIZE
+ * users or SIGNUP_BATCH_LINGER milliseconds after its first user arrived.
+ * Every worker waits for the result of its own user.
+ * <p>
+ * A worker whose request runs out of time stops waiting, but its user stays
+ * in the queue or in the running batch and may still be inserted. The client
+ * gets a server error, and if it signs up again it can get EMAIL_EXISTS_ERROR
+ * because the first attempt was inserted after all.
+ *
+ * @author Olivia
+ */
+public class SignUpBatcher implements Runnable {
+
+    private static volatile SignUpBatcher batcher;
+    private static volatile boolean configured = false;
+    private static final Logger LOGGER = Logger.getLogger("package dataAcess");
+    private final BlockingQueue<Pending> queue = new LinkedBlockingQueue<>();
+    private final int batchSize;
+    private final long linger;
+
+    private SignUpBatcher(int batchSize, long linger) {
+        this.batchSize = batchSize;
+        this.linger = linger;
+    }
+
+    /**
+     * Retrieves the singleton batcher, starting its thread the first time.
+     *
+     * @return the batcher or null if SIGNUP_BATCH_SIZE is not greater than
+     * one.
+     */
+    public static SignUpBatcher getBatcher() {
+        // Every sign up asks, only the first one takes the lock
+        if (!configured) {
+            configure();
+        }
+        return batcher;
+    }
+
+    private static synchronized void configure() {
+        if (!configured) {
+            ResourceBundle configFile = ResourceBundle.getBundle("config.config");
+            int size = configFile.containsKey("SIGNUP_BATCH_SIZE")
+                    ? Integer.parseInt(configFile.getString("SIGNUP_BATCH_SIZE").trim()) : 1;
+            if (size > 1) {
+                batcher = new SignUpBatcher(size, configFile.containsKey("SIGNUP_BATCH_LINGER")
+                        ? Long.parseLong(configFile.getString("SIGNUP_BATCH_LINGER").trim()) : 5);
+                Thread thread = new Thread(batcher, "signup-batcher");
+                thread.setDaemon(true);
+                thread.start();
+            }
+            configured = true;
+        }
+    }
+
+    /**
+     * Adds a user to the next batch and waits until it is inserted.
+     *
+     * @param user The user to sign up.
+     * @return the user.
+     * @throws ServerErrorException if the connection to the DB failed.
+     * @throws EmailExistsException if the email already exists in the DB or
+     * in an earlier user of the same batch.
+     */
+    public User signUp(User user) throws ServerErrorException, EmailExistsException {
+        Pending pending = new Pending(user);
+        queue.add(pending);
+        try {
+            long remaining = Deadline.remaining(TimeUnit.NANOSECONDS);
+            return remaining == Long.MAX_VALUE ? pending.result.get()
+                    : pending.result.get(remaining, TimeUnit.NANOSECONDS);
+        } catch (TimeoutException ex) {
+            // The batch may still insert the user, the client is not waiting anymore
+            Deadline.expire(Deadline.Cause.BATCH);
+            throw new ServerErrorException("Timeout waiting for the sign up.");
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new ServerErrorException(ex.getMessage());
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof EmailExistsException) {
+                throw (EmailExistsException) ex.getCause();
+            }
+            if (ex.getCause() instanceof ServerErrorException) {
+                throw (ServerErrorException) ex.getCause();
+            }
+            throw new ServerErrorException(ex.getCause().getMessage());
+        }
+    }
+
+    /**
+     * Waits for sign ups and inserts them batch by batch.
+     */
+    @Override
+    public void run() {
+        while (true) {
+            List<Pending> batch = new ArrayList<>(batchSize);
+            try {
+                batch.add(queue.take());
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(linger);
+                while (batch.size() < batchSize) {
+                    Pending next = queue.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+            } catch (InterruptedException ex) {
+                LOGGER.log(Level.SEVERE, null, ex);
+            }
+            try {
+                insert(batch);
+            } catch (RuntimeException ex) {
+                // No worker may wait forever
+                for (Pending pending : batch) {
+                    pending.result.completeExceptionally(new ServerErrorException(ex.getMessage()));
+                }
+            }
+        }
+    }
+
+    /**
+     * Inserts a batch of users in one transaction. The users whose email is
+     * repeated in the batch or already in the database get an
+     * EmailExistsException. If the transaction fails the users are inserted
+     * one by one, so every worker gets its own result.
+     *
+     * @param batch The users.
+     */
+    private void insert(List<Pending> batch) {
+        // The first user of an email wins inside the batch
+        Map<String, Pending> byLogin = new LinkedHashMap<>();
+        for (Pending pending : batch) {
+            if (pending.user.getEmail() == null) {
+                pending.result.completeExceptionally(new ServerErrorException("Sign up without email."));
+            } else if (byLogin.putIfAbsent(pending.user.getEmail(), pending) != null) {
+                pending.result.completeExceptionally(new EmailExistsException("Email exists."));
+            }
+        }
+        if (byLogin.isEmpty()) {
+            return;
+        }
+        LOGGER.info("Creating " + byLogin.size() + " users in one transaction.");
+        PoolCreatable pool = PoolFactory.getPool();
+        Connection con;
+        try {
+            con = pool.takeConnection();
+        } catch (ServerErrorException ex) {
+            for (Pending pending : byLogin.values()) {
+                pending.result.completeExceptionally(ex);
+            }
+            return;
+        }
+        List<User> users = new ArrayList<>(byLogin.size());
+        for (Pending pending : byLogin.values()) {
+            users.add(pending.user);
+        }
+        Set<String> existing;
+        try {
+            con.setAutoCommit(false);
+            existing = DAO.insertUsers(pool, con, users);
+            con.commit();
+        } catch (SQLException ex) {
+            // A concurrent sign up or a bad user, each one is tried alone
+            LOGGER.log(Level.INFO, "Batch rolled back, inserting the users one by one.", ex);
+            try {
+                con.rollback();
+            } catch (SQLException ex1) {
+                LOGGER.log(Level.SEVERE, null, ex1);
+            }
+            pool.returnConnection(con);
+            insertAlone(byLogin.values());
+            return;
+        }
+        pool.returnConnection(con);
+        for (Pending pending : byLogin.values()) {
+            if (existing.contains(pending.user.getEmail())) {
+                pending.result.completeExceptionally(new EmailExistsException("Email exists."));
+            } else {
+                LoginIndex.getIndex().add(pending.user.getEmail());
+                pending.result.complete(pending.user);
+            }
+        }
+    }
+
+    /**
+     * Inserts the users of a failed batch that have no result yet one by
+     * one.
+     *
+     * @param batch The users.
+     */
+    private void insertAlone(Collection<Pending> batch) {
+        for (Pending pending : batch) {
+            if (pending.result.isDone()) {
+                continue;
+            }
+            try {
+                pending.result.complete(SignableFactory.getDAO().signUpAlone(pending.user));
+            } catch (ServerErrorException | EmailExistsException ex) {
+                pending.result.completeExceptionally(ex);
+            }
+        }
+    }
+
+    /**
+     * A user waiting to be inserted and the result its worker waits for.
+     */
+    private static class Pending {
+
+        private final User user;
+        private final CompletableFuture<User> result = new CompletableFuture<>();
+
+        Pending(User user) {
+            this.user = user;
+        }
+    }
+}
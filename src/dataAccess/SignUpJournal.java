@@ -0,0 +1,697 @@
+package dataAccess;
+
+import exceptions.EmailExistsException;
+import exceptions.ServerErrorException;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLRecoverableException;
+import java.sql.SQLTransientException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.ResourceBundle;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+import metrics.Histogram;
+import metrics.Metrics;
+import models.Privilege;
+import models.User;
+
+/**
+ * Stores the sign ups in a local journal instead of waiting for the database.
+ * The journal is the file JOURNAL_FILE of JOURNAL_SIZE bytes, mapped in
+ * memory, where every user is appended as a record with its length and its
+ * CRC32. A sign up is answered when its record has been forced to the disk,
+ * and the writes of concurrent sign ups are forced together. A background
+ * thread inserts the records in order, JOURNAL_BATCH_SIZE users per
+ * transaction, and after every commit it saves in the header of the file the
+ * position of the next record. After a crash the records after that position
+ * are inserted again and the users already in the database are skipped, so
+ * no user is lost or inserted twice. When every record has been inserted the
+ * journal starts again from the beginning, with the next epoch: the CRC32 of
+ * a record is saved mixed with the epoch of the journal, so the records left
+ * from an earlier epoch are never read again.
+ *
+ * A damaged record, whose length, CRC32 or content is wrong, is skipped up
+ * to the next valid record of the epoch and the bytes skipped are logged as
+ * SEVERE and counted in journal.damaged.bytes. After a crash a damaged record
+ * with no valid record after it is the write that was cut, never answered,
+ * and the journal goes on from there.
+ *
+ * A login waiting in the journal cannot sign up again, and its sign in waits
+ * until it is inserted. A login that the LoginIndex may know is looked for in
+ * the database before it is appended. Only while the circuit breaker of the
+ * primary is open the sign up is stored without that query: a login that is
+ * already in the database is then found by the background thread, which
+ * skips it and logs it, so that sign up is answered as accepted although the
+ * user is not created and keeps its old password.
+ *
+ * A batch that fails for a reason other than the connection is inserted
+ * again one user at a time, and a user that still fails is skipped with a
+ * SEVERE log and counted in journal.dead, so a bad record does not stop the
+ * journal. A batch that fails because the database cannot be reached is
+ * tried again every second.
+ *
+ * @author Olivia
+ */
+public class SignUpJournal implements Runnable {
+
+    private static volatile SignUpJournal journal;
+    private static volatile boolean configured = false;
+    private static final Logger LOGGER = Logger.getLogger("package dataAcess");
+    /**
+     * First int of the file, "SUJ1".
+     */
+    private static final int MAGIC = 0x53554a31;
+    /**
+     * Bytes of the header: the magic value, the epoch and the position of the
+     * first record not inserted.
+     */
+    private static final int HEADER = 16;
+    private static final int EPOCH_OFFSET = 4;
+    private static final int APPLIED_OFFSET = 8;
+    /**
+     * Bytes of a record before its user: the length and the CRC32.
+     */
+    private static final int RECORD_HEADER = 8;
+    private static final long RETRY_DELAY = 1000;
+    /**
+     * Milliseconds a sign in waits for its user when the request has no
+     * deadline.
+     */
+    private static final long APPLY_WAIT = 10000;
+    private static final Histogram APPEND = Metrics.histogram("journal.append");
+    private static final Histogram APPLY = Metrics.histogram("journal.apply");
+    private final Path path;
+    private final MappedByteBuffer buffer;
+    /**
+     * Views of the buffer with their own position, for the writer and the
+     * background thread.
+     */
+    private final ByteBuffer writer;
+    private final ByteBuffer reader;
+    private final int capacity;
+    private final int batchSize;
+    /**
+     * End of the records written, changed with the lock of the journal held.
+     */
+    private int written;
+    /**
+     * End of the records forced to the disk.
+     */
+    private volatile int synced;
+    /**
+     * End of the records inserted in the database.
+     */
+    private volatile int applied;
+    /**
+     * Changed by the restart, with the lock of the journal held.
+     */
+    private int epoch;
+    /**
+     * If the last records read had damaged bytes, only used by the
+     * background thread.
+     */
+    private boolean damaged;
+    private final Object syncLock = new Object();
+    private final Object appliedLock = new Object();
+    /**
+     * Logins in the journal and not yet in the database, with the end of
+     * their record, or Integer.MAX_VALUE while it is being written.
+     */
+    private final Map<String, Integer> pending = new ConcurrentHashMap<>();
+    private final LongAdder dead = new LongAdder();
+    private final LongAdder damagedBytes = new LongAdder();
+
+    /**
+     * Opens a journal and finds the records not inserted yet.
+     *
+     * @param path The file of the journal.
+     * @param size The bytes of the file, if it is new or smaller.
+     * @param batchSize The users inserted in one transaction.
+     * @throws IOException If the file cannot be opened.
+     */
+    public SignUpJournal(Path path, int size, int batchSize) throws IOException {
+        this.path = path;
+        this.batchSize = Math.max(batchSize, 1);
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            capacity = (int) Math.min(Math.max(size, channel.size()), Integer.MAX_VALUE);
+            // The mapping stays valid after the channel is closed
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+        }
+        writer = buffer.duplicate();
+        reader = buffer.duplicate();
+        if (buffer.getInt(0) != MAGIC) {
+            buffer.putInt(0, MAGIC);
+            buffer.putInt(EPOCH_OFFSET, 0);
+            buffer.putLong(APPLIED_OFFSET, HEADER);
+            buffer.putInt(HEADER, 0);
+            buffer.force();
+        }
+        epoch = buffer.getInt(EPOCH_OFFSET);
+        long saved = buffer.getLong(APPLIED_OFFSET);
+        applied = saved < HEADER || saved > capacity - 4 ? HEADER : (int) saved;
+        // The records after the last commit, until the zero that marks the end
+        int position = applied;
+        while (position + 4 <= capacity && buffer.getInt(position) != 0) {
+            User user = read(reader, position, capacity);
+            if (user != null) {
+                pending.put(user.getEmail(), reader.position());
+                position = reader.position();
+                continue;
+            }
+            int next = resync(position, capacity);
+            if (next < 0) {
+                // The last write, cut by the crash before it was forced
+                break;
+            }
+            skipped(position, next);
+            position = next;
+        }
+        written = position;
+        synced = position;
+        buffer.putInt(position, 0);
+        if (!pending.isEmpty()) {
+            LOGGER.info("Recovered " + pending.size() + " sign ups from the journal " + path + ".");
+        }
+        Metrics.gauge("journal.lag", pending::size);
+        Metrics.gauge("journal.lag.bytes", () -> synced - applied);
+        Metrics.gauge("journal.dead", dead::sum);
+        Metrics.gauge("journal.damaged.bytes", damagedBytes::sum);
+    }
+
+    /**
+     * Retrieves the singleton journal, starting its thread the first time.
+     *
+     * @return the journal or null if SIGNUP_JOURNAL is not true.
+     * @throws ServerErrorException If the file of the journal cannot be
+     * opened.
+     */
+    public static SignUpJournal getJournal() throws ServerErrorException {
+        // Every sign up and sign in asks, only the first one takes the lock
+        if (!configured) {
+            configure();
+        }
+        return journal;
+    }
+
+    private static synchronized void configure() throws ServerErrorException {
+        if (!configured) {
+            ResourceBundle configFile = ResourceBundle.getBundle("config.config");
+            if (configFile.containsKey("SIGNUP_JOURNAL")
+                    && Boolean.parseBoolean(configFile.getString("SIGNUP_JOURNAL").trim())) {
+                Path path = Paths.get(configFile.containsKey("JOURNAL_FILE")
+                        ? configFile.getString("JOURNAL_FILE").trim() : "signups.journal");
+                int size = configFile.containsKey("JOURNAL_SIZE")
+                        ? Integer.parseInt(configFile.getString("JOURNAL_SIZE").trim()) : 64 * 1024 * 1024;
+                int batchSize = configFile.containsKey("JOURNAL_BATCH_SIZE")
+                        ? Integer.parseInt(configFile.getString("JOURNAL_BATCH_SIZE").trim()) : 100;
+                try {
+                    journal = new SignUpJournal(path, size, batchSize);
+                } catch (IOException ex) {
+                    LOGGER.log(Level.SEVERE, null, ex);
+                    throw new ServerErrorException("The sign up journal cannot be opened.");
+                }
+                Thread thread = new Thread(journal, "signup-journal");
+                thread.setDaemon(true);
+                thread.start();
+            }
+            configured = true;
+        }
+    }
+
+    /**
+     * Appends a user to the journal and waits until it is on the disk. A
+     * login that may exist is looked for in the database, unless the database
+     * is down.
+     *
+     * @param user The user, with the hash of its password.
+     * @throws ServerErrorException If the journal is full or the database
+     * cannot be asked.
+     * @throws EmailExistsException If the login is in the journal or in the
+     * database.
+     */
+    public void append(User user) throws ServerErrorException, EmailExistsException {
+        String login = user.getEmail();
+        if (login == null || pending.putIfAbsent(login, Integer.MAX_VALUE) != null) {
+            throw new EmailExistsException("Email exists.");
+        }
+        boolean appended = false;
+        try {
+            if (LoginIndex.getIndex().mightExist(login)) {
+                if (PoolFactory.getPool().getBreaker().isOpen()) {
+                    // Skipped later by the background thread if it exists
+                    LOGGER.warning("The database is down, the sign up of " + login + " is stored unchecked.");
+                } else if (DAO.loginExists(login)) {
+                    throw new EmailExistsException("Email exists.");
+                }
+            }
+            byte[] payload = encode(user);
+            CRC32 crc = new CRC32();
+            crc.update(payload, 0, payload.length);
+            long start = System.nanoTime();
+            int end;
+            synchronized (this) {
+                // Room for the record and the zero that marks the end
+                if (written + RECORD_HEADER + payload.length + 4 > capacity) {
+                    LOGGER.warning("The sign up journal is full, " + pending.size() + " sign ups waiting.");
+                    throw new ServerErrorException("Too many sign ups waiting to be stored.");
+                }
+                writer.position(written);
+                writer.putInt(payload.length);
+                writer.putInt((int) crc.getValue() ^ epoch);
+                writer.put(payload);
+                end = writer.position();
+                writer.putInt(0);
+                written = end;
+            }
+            // Before the record can be read by the background thread
+            pending.put(login, end);
+            sync(end);
+            APPEND.recordSince(start);
+            appended = true;
+        } finally {
+            if (!appended) {
+                pending.remove(login);
+            }
+        }
+    }
+
+    /**
+     * Waits until a login of the journal is in the database, so its sign in
+     * finds it.
+     *
+     * @param login The login.
+     * @throws ServerErrorException If the request runs out of time.
+     */
+    public void awaitApplied(String login) throws ServerErrorException {
+        if (login == null || !pending.containsKey(login)) {
+            return;
+        }
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Deadline.bound(APPLY_WAIT));
+        synchronized (appliedLock) {
+            while (pending.containsKey(login)) {
+                long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                if (remaining <= 0) {
+                    if (Deadline.isExpired()) {
+                        Deadline.expire(Deadline.Cause.SQL);
+                    }
+                    throw new ServerErrorException("Timeout waiting for the sign up.");
+                }
+                try {
+                    appliedLock.wait(remaining);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    throw new ServerErrorException(ex.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * Gets the number of users in the journal that are not in the database
+     * yet.
+     *
+     * @return the lag in users.
+     */
+    public int getLag() {
+        return pending.size();
+    }
+
+    /**
+     * Inserts the records of the journal in the database as they are forced
+     * to the disk.
+     */
+    @Override
+    public void run() {
+        while (true) {
+            try {
+                List<User> users = new ArrayList<>(batchSize);
+                int end = readBatch(users);
+                if (users.isEmpty() && end != applied) {
+                    // Only damaged bytes, they are left behind
+                    commit(end, users, Collections.emptySet());
+                } else if (users.isEmpty()) {
+                    restart();
+                    synchronized (syncLock) {
+                        if (synced == applied) {
+                            syncLock.wait(RETRY_DELAY);
+                        }
+                    }
+                } else {
+                    Set<String> skipped = insert(users);
+                    if (skipped != null) {
+                        commit(end, users, skipped);
+                    } else {
+                        Thread.sleep(RETRY_DELAY);
+                    }
+                }
+            } catch (InterruptedException ex) {
+                LOGGER.log(Level.SEVERE, null, ex);
+                return;
+            } catch (RuntimeException ex) {
+                // The thread must not die, the records are tried again
+                LOGGER.log(Level.SEVERE, null, ex);
+            }
+        }
+    }
+
+    /**
+     * Forces the records written to the disk, unless another thread has
+     * already forced them.
+     *
+     * @param end The end of the record that must be on the disk.
+     */
+    private void sync(int end) {
+        if (synced >= end) {
+            return;
+        }
+        synchronized (syncLock) {
+            if (synced < end) {
+                int target;
+                synchronized (this) {
+                    target = written;
+                }
+                buffer.force();
+                synced = target;
+                syncLock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Reads the next records forced to the disk and not inserted. Every
+     * record until synced is complete, so one that cannot be read is damaged
+     * and skipped.
+     *
+     * @param users Receives the users of the records.
+     * @return the end of the last record read or skipped.
+     */
+    private int readBatch(List<User> users) {
+        int position = applied;
+        int limit = synced;
+        while (users.size() < batchSize && position < limit) {
+            User user = read(reader, position, limit);
+            if (user != null) {
+                users.add(user);
+                position = reader.position();
+            } else {
+                int next = resync(position, limit);
+                next = next < 0 ? limit : next;
+                skipped(position, next);
+                damaged = true;
+                position = next;
+            }
+        }
+        return position;
+    }
+
+    /**
+     * Finds the next valid record of the epoch after a damaged one.
+     *
+     * @param position The position of the damaged record.
+     * @param limit The end of the bytes that can be read.
+     * @return the position of the next record or -1 if there is none.
+     */
+    private int resync(int position, int limit) {
+        for (int next = position + 1; next + RECORD_HEADER < limit; next++) {
+            if (read(reader, next, limit) != null) {
+                return next;
+            }
+        }
+        return -1;
+    }
+
+    private void skipped(int position, int next) {
+        damagedBytes.add(next - position);
+        LOGGER.severe("Damaged record in the sign up journal " + path + ", skipped "
+                + (next - position) + " bytes at " + position + ".");
+    }
+
+    /**
+     * Inserts a batch of users in one transaction, skipping the ones already
+     * in the database. If the transaction fails for a reason other than the
+     * connection the users are inserted one by one.
+     *
+     * @param users The users.
+     * @return the logins not inserted, or null if the database cannot be
+     * reached and the batch must be tried again.
+     */
+    private Set<String> insert(List<User> users) {
+        // After a crash a login may be twice, the first one wins
+        Map<String, User> byLogin = new LinkedHashMap<>();
+        for (User user : users) {
+            byLogin.putIfAbsent(user.getEmail(), user);
+        }
+        PoolCreatable pool = PoolFactory.getPool();
+        long start = System.nanoTime();
+        Connection con;
+        try {
+            con = pool.takeConnection();
+        } catch (ServerErrorException ex) {
+            LOGGER.warning("Journal waiting for the database: " + ex.getMessage());
+            return null;
+        }
+        Set<String> skipped;
+        try {
+            con.setAutoCommit(false);
+            skipped = DAO.insertUsers(pool, con, byLogin.values());
+            con.commit();
+            if (!skipped.isEmpty()) {
+                LOGGER.warning("Sign ups of the journal already in the database, not inserted: " + skipped);
+            }
+        } catch (SQLException ex) {
+            rollback(con);
+            if (isUnreachable(con, ex)) {
+                LOGGER.log(Level.WARNING, "Journal batch rolled back, it is tried again.", ex);
+                return null;
+            }
+            LOGGER.log(Level.INFO, "Journal batch rolled back, inserting the users one by one.", ex);
+            skipped = insertAlone(pool, con, byLogin.values());
+        } finally {
+            pool.returnConnection(con);
+        }
+        if (skipped == null) {
+            return null;
+        }
+        APPLY.recordSince(start);
+        LOGGER.info("Inserted " + (byLogin.size() - skipped.size()) + " users from the journal.");
+        return skipped;
+    }
+
+    /**
+     * Inserts the users of a failed batch one by one, each one in its own
+     * transaction. The users that fail are skipped.
+     *
+     * @param pool The pool of the connection.
+     * @param con The connection, without autocommit.
+     * @param users The users.
+     * @return the logins not inserted, or null if the database cannot be
+     * reached and the batch must be tried again.
+     */
+    private Set<String> insertAlone(PoolCreatable pool, Connection con, Collection<User> users) {
+        Set<String> skipped = new HashSet<>();
+        for (User user : users) {
+            try {
+                if (!DAO.insertUsers(pool, con, Collections.singletonList(user)).isEmpty()) {
+                    skipped.add(user.getEmail());
+                    LOGGER.warning("Sign up of the journal already in the database, not inserted: "
+                            + user.getEmail());
+                }
+                con.commit();
+            } catch (SQLException ex) {
+                rollback(con);
+                if (isUnreachable(con, ex)) {
+                    // The users already inserted are skipped when the batch is tried again
+                    LOGGER.log(Level.WARNING, "Journal batch interrupted, it is tried again.", ex);
+                    return null;
+                }
+                skipped.add(user.getEmail());
+                dead.increment();
+                LOGGER.log(Level.SEVERE, "Sign up of " + user.getEmail()
+                        + " skipped, it cannot be inserted from the journal.", ex);
+            }
+        }
+        return skipped;
+    }
+
+    /**
+     * Says if a failure comes from the connection or the state of the
+     * database, and not from the users of the batch.
+     */
+    private static boolean isUnreachable(Connection con, SQLException ex) {
+        String state = ex.getSQLState();
+        if (ex instanceof SQLTransientException || ex instanceof SQLRecoverableException
+                || state == null || state.startsWith("08") || state.startsWith("40")
+                || state.startsWith("53") || state.startsWith("57")) {
+            return true;
+        }
+        try {
+            return con.isClosed();
+        } catch (SQLException ex1) {
+            return true;
+        }
+    }
+
+    private static void rollback(Connection con) {
+        try {
+            con.rollback();
+        } catch (SQLException ex) {
+            LOGGER.log(Level.SEVERE, null, ex);
+        }
+    }
+
+    /**
+     * Saves the position of the next record after a commit and releases the
+     * logins of the records.
+     *
+     * @param end The end of the records inserted.
+     * @param users The users of the records.
+     * @param skipped The logins not inserted, already in the database or
+     * failed.
+     */
+    private void commit(int end, List<User> users, Set<String> skipped) {
+        buffer.putLong(APPLIED_OFFSET, end);
+        buffer.force();
+        applied = end;
+        for (User user : users) {
+            if (!skipped.contains(user.getEmail())) {
+                LoginIndex.getIndex().add(user.getEmail());
+            }
+            pending.remove(user.getEmail());
+        }
+        if (damaged) {
+            // The logins of the damaged records are not known, their ends are
+            damaged = false;
+            pending.values().removeIf(recordEnd -> recordEnd <= end);
+        }
+        synchronized (appliedLock) {
+            appliedLock.notifyAll();
+        }
+    }
+
+    /**
+     * Starts the journal again from the beginning when every record has been
+     * inserted and it is more than half full.
+     */
+    private void restart() {
+        if (applied <= capacity / 2) {
+            return;
+        }
+        synchronized (syncLock) {
+            synchronized (this) {
+                if (written != applied || synced != applied) {
+                    return;
+                }
+                buffer.putInt(HEADER, 0);
+                epoch++;
+                buffer.putInt(EPOCH_OFFSET, epoch);
+                buffer.putLong(APPLIED_OFFSET, HEADER);
+                buffer.force();
+                written = HEADER;
+                synced = HEADER;
+                applied = HEADER;
+            }
+        }
+        LOGGER.info("The sign up journal " + path + " starts again.");
+    }
+
+    /**
+     * Reads the record at a position.
+     *
+     * @param view The view of the buffer, left after the record.
+     * @param position The position of the record.
+     * @param limit The end of the bytes that can be read.
+     * @return the user or null if there is no complete and valid record of
+     * the epoch.
+     */
+    private User read(ByteBuffer view, int position, int limit) {
+        if (position + RECORD_HEADER > limit) {
+            return null;
+        }
+        int length = view.getInt(position);
+        if (length <= 0 || length > limit - position - RECORD_HEADER) {
+            return null;
+        }
+        byte[] payload = new byte[length];
+        view.position(position + RECORD_HEADER);
+        view.get(payload);
+        CRC32 crc = new CRC32();
+        crc.update(payload, 0, length);
+        if (((int) crc.getValue() ^ epoch) != view.getInt(position + 4)) {
+            return null;
+        }
+        try {
+            return decode(payload);
+        } catch (IOException | RuntimeException ex) {
+            // A record of another version or damaged with the same CRC32
+            return null;
+        }
+    }
+
+    private static byte[] encode(User user) throws ServerErrorException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeByte(user.getPrivilege() == null ? -1 : user.getPrivilege().ordinal());
+            writeString(out, user.getEmail());
+            writeString(out, user.getPassword());
+            writeString(out, user.getName());
+            writeString(out, user.getStreet());
+            writeString(out, user.getZip());
+            writeString(out, user.getCity());
+        } catch (IOException ex) {
+            // A field longer than 65535 bytes
+            throw new ServerErrorException(ex.getMessage());
+        }
+        return bytes.toByteArray();
+    }
+
+    private static User decode(byte[] payload) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+        User user = new User();
+        int privilege = in.readByte();
+        user.setPrivilege(privilege < 0 ? null : Privilege.values()[privilege]);
+        user.setEmail(readString(in));
+        user.setPassword(readString(in));
+        user.setName(readString(in));
+        user.setStreet(readString(in));
+        user.setZip(readString(in));
+        user.setCity(readString(in));
+        if (user.getEmail() == null) {
+            throw new IOException("Journal record without login.");
+        }
+        return user;
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+}
@@ -1,6 +1,7 @@
 package dataAccess;
 
 import interfaces.Signable;
+import java.util.ResourceBundle;
 
 /**
  * A factory class to create instances of classes that implement the Signable
@@ -16,12 +17,57 @@ public class SignableFactory {
     public SignableFactory() {
     }
 
+    private static volatile Signable signable;
+    private static volatile DAO dao;
+
     /**
-     * Returns an instance of a class that implements the Signable interface.
+     * Returns the instance of a class that implements the Signable interface,
+     * shared by all the workers. If SIGNIN_CACHE is true in the configuration
+     * file it is the cache of users in front of the DAO.
      *
      * @return a Signable object with the DAO implementation.
      */
     public static Signable getSignable() {
-        return new DAO();
+        Signable current = signable;
+        return current != null ? current : create();
+    }
+
+    /**
+     * Returns the DAO shared by the workers, the batcher and the import.
+     *
+     * @return the DAO.
+     */
+    static DAO getDAO() {
+        DAO current = dao;
+        if (current == null) {
+            synchronized (SignableFactory.class) {
+                if (dao == null) {
+                    dao = new DAO();
+                }
+                current = dao;
+            }
+        }
+        return current;
+    }
+
+    /**
+     * Creates the cache of users in front of the shared DAO, if it is
+     * enabled, the first time.
+     *
+     * @return the Signable.
+     */
+    private static synchronized Signable create() {
+        if (signable == null) {
+            DAO shared = getDAO();
+            ResourceBundle configFile = ResourceBundle.getBundle("config.config");
+            if (configFile.containsKey("SIGNIN_CACHE") && Boolean.parseBoolean(configFile.getString("SIGNIN_CACHE").trim())) {
+                signable = new CachingSignable(() -> shared,
+                        Integer.parseInt(configFile.getString("SIGNIN_CACHE_SIZE").trim()),
+                        Long.parseLong(configFile.getString("SIGNIN_CACHE_TTL").trim()));
+            } else {
+                signable = shared;
+            }
+        }
+        return signable;
     }
 }
@@ -0,0 +1,137 @@
+package dataAccess;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import metrics.Metrics;
+
+/**
+ * The prepared statements of a pooled connection, kept by their SQL text so a
+ * repeated query is not parsed and planned again by the database. When the
+ * cache is full the least recently used statement is closed. The cache is used
+ * by one borrower at a time, so it needs no synchronization, but the hit and
+ * miss counters are shared by all the connections.
+ *
+ * @author Olivia
+ */
+public class StatementCache {
+
+    private static final LongAdder hits = new LongAdder();
+    private static final LongAdder misses = new LongAdder();
+    private static final LongAdder evictions = new LongAdder();
+    private static final Logger LOGGER = Logger.getLogger("package dataAcess");
+    private final int maxSize;
+    private final LinkedHashMap<String, PreparedStatement> statements;
+
+    static {
+        Metrics.gauge("statements.hits", StatementCache::getHits);
+        Metrics.gauge("statements.misses", StatementCache::getMisses);
+        Metrics.gauge("statements.evictions", StatementCache::getEvictions);
+    }
+
+    /**
+     * Creates an empty cache.
+     *
+     * @param maxSize The maximum number of statements kept, 0 to keep them
+     * only until the connection is returned.
+     */
+    StatementCache(int maxSize) {
+        this.maxSize = maxSize;
+        this.statements = new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest) {
+                if (StatementCache.this.maxSize > 0 && size() > StatementCache.this.maxSize) {
+                    evictions.increment();
+                    close(eldest.getValue());
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Gets the statement of a SQL text, preparing it if it is not cached. The
+     * statement belongs to the cache and must not be closed by the caller.
+     *
+     * @param con The connection of the cache.
+     * @param sql The SQL text.
+     * @return the prepared statement.
+     * @throws SQLException If the statement cannot be prepared.
+     */
+    PreparedStatement prepare(Connection con, String sql) throws SQLException {
+        PreparedStatement stmt = statements.get(sql);
+        if (stmt != null && !stmt.isClosed()) {
+            hits.increment();
+            stmt.clearParameters();
+            stmt.clearBatch();
+            return stmt;
+        }
+        misses.increment();
+        stmt = con.prepareStatement(sql);
+        statements.put(sql, stmt);
+        return stmt;
+    }
+
+    /**
+     * Called when the connection goes back to the pool. Without a size the
+     * statements are closed.
+     */
+    void release() {
+        if (maxSize <= 0) {
+            clear();
+        }
+    }
+
+    /**
+     * Closes every statement of the cache.
+     */
+    void clear() {
+        Iterator<PreparedStatement> iterator = statements.values().iterator();
+        while (iterator.hasNext()) {
+            close(iterator.next());
+            iterator.remove();
+        }
+    }
+
+    private static void close(PreparedStatement stmt) {
+        try {
+            stmt.close();
+        } catch (SQLException ex) {
+            LOGGER.log(Level.SEVERE, null, ex);
+        }
+    }
+
+    /**
+     * Gets the number of statements found in the caches.
+     *
+     * @return the hits.
+     */
+    public static long getHits() {
+        return hits.sum();
+    }
+
+    /**
+     * Gets the number of statements that had to be prepared.
+     *
+     * @return the misses.
+     */
+    public static long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * Gets the number of statements closed because a cache was full.
+     *
+     * @return the evictions.
+     */
+    public static long getEvictions() {
+        return evictions.sum();
+    }
+}
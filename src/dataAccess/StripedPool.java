@@ -0,0 +1,499 @@
+package dataAccess;
+
+import exceptions.ServerErrorException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.ResourceBundle;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import metrics.Histogram;
+import metrics.Metrics;
+
+/**
+ * A connection pool without a global lock for hosts with many cores. The idle
+ * connections are kept in several lock free stripes and every thread uses its
+ * own stripe, taking connections from the others only when its stripe is
+ * empty. The number of borrowed connections is limited by a semaphore, so a
+ * borrower only waits when all the connections are in use. A borrower with a
+ * permit whose connection is taken by another thread waits on a condition
+ * until one is returned or closed. It has the same limits and times as Pool.
+ *
+ * @author Irati
+ */
+public class StripedPool implements PoolCreatable {
+
+    private final ConnectionSource source;
+    private final PoolConfig config;
+    private final ConcurrentLinkedDeque<PooledConnection>[] stripes;
+    private final Map<Connection, PooledConnection> borrowed = new ConcurrentHashMap<>();
+    /**
+     * One permit for every connection that can still be borrowed.
+     */
+    private final Semaphore permits;
+    /**
+     * Borrowers with a permit waiting for an idle connection or room for a
+     * new one, so the returns only take the lock when someone waits.
+     */
+    private final AtomicInteger waiters = new AtomicInteger();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition available = lock.newCondition();
+    /**
+     * Connections open or being opened, idle and borrowed.
+     */
+    private final AtomicInteger total = new AtomicInteger();
+    private final AtomicLong created = new AtomicLong();
+    private final LongAdder waitTime = new LongAdder();
+    private final ScheduledExecutorService evictor;
+    private final CircuitBreaker breaker;
+    private final LeakDetector leaks;
+    private static final Histogram BORROW = Metrics.histogram("pool.borrow");
+    private static final Logger LOGGER = Logger.getLogger("package dataAcess");
+
+    /**
+     * Constructs a new striped pool for the database of the configuration
+     * file.
+     */
+    public StripedPool() {
+        this(ResourceBundle.getBundle("config.config"));
+    }
+
+    private StripedPool(ResourceBundle configFile) {
+        this(ConnectionSource.of(configFile.getString("URL"), configFile.getString("DB_USER"),
+                configFile.getString("DB_PASSWORD")), configFile);
+    }
+
+    /**
+     * Constructs a new striped pool that opens its connections from a source,
+     * with the sizes and times of the configuration file. The number of
+     * stripes is POOL_STRIPES or the number of processors.
+     *
+     * @param source Where the connections are opened.
+     * @param configFile The configuration file.
+     */
+    public StripedPool(ConnectionSource source, ResourceBundle configFile) {
+        this("pool", source, configFile);
+    }
+
+    /**
+     * Constructs a new named striped pool that opens its connections from a
+     * source, with the sizes and times of the configuration file.
+     *
+     * @param name The name of the pool, used in the log and its threads.
+     * @param source Where the connections are opened.
+     * @param configFile The configuration file.
+     */
+    public StripedPool(String name, ConnectionSource source, ResourceBundle configFile) {
+        this.source = source;
+        this.config = new PoolConfig(configFile);
+        int count = Math.max(config.getInt("POOL_STRIPES", Runtime.getRuntime().availableProcessors()), 1);
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        ConcurrentLinkedDeque<PooledConnection>[] array = new ConcurrentLinkedDeque[count];
+        for (int i = 0; i < count; i++) {
+            array[i] = new ConcurrentLinkedDeque<>();
+        }
+        stripes = array;
+        permits = new Semaphore(config.maxSize);
+        breaker = new CircuitBreaker(name, config.breakerFailures, config.breakerOpenTime);
+        leaks = new LeakDetector(name, config.leakDetectionThreshold);
+
+        evictor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, name + "-evictor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        evictor.scheduleWithFixedDelay(this::evict, config.evictionInterval, config.evictionInterval, TimeUnit.MILLISECONDS);
+        leaks.start(evictor, borrowed.values());
+    }
+
+    /**
+     * Retrieves a database connection. It looks first in the stripe of the
+     * thread, then in the other stripes and if none has an idle connection a
+     * new one is created.
+     *
+     * @return A database connection.
+     * @throws ServerErrorException if no connection can be created or the
+     * borrow timeout or the deadline of the request passes.
+     */
+    @Override
+    public Connection takeConnection() throws ServerErrorException {
+        if (!breaker.allowRequest()) {
+            throw new ServerErrorException("The database is not available.");
+        }
+        if (Deadline.isExpired()) {
+            Deadline.expire(Deadline.Cause.POOL);
+            throw new ServerErrorException("The request has no time left.");
+        }
+        long begin = System.nanoTime();
+        try {
+            if (!permits.tryAcquire()) {
+                long start = System.nanoTime();
+                boolean acquired = permits.tryAcquire(Deadline.bound(config.borrowTimeout), TimeUnit.MILLISECONDS);
+                waitTime.add(System.nanoTime() - start);
+                if (!acquired) {
+                    if (Deadline.isExpired()) {
+                        Deadline.expire(Deadline.Cause.POOL);
+                    }
+                    throw new ServerErrorException("Timeout waiting for a pool connection.");
+                }
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new ServerErrorException(ex.getMessage());
+        }
+        try {
+            PooledConnection pooled = borrow();
+            pooled.borrowedAt = System.currentTimeMillis();
+            leaks.onBorrow(pooled);
+            borrowed.put(pooled.connection, pooled);
+            BORROW.recordSince(begin);
+            return pooled.connection;
+        } catch (ServerErrorException | RuntimeException ex) {
+            permits.release();
+            throw ex;
+        }
+    }
+
+    /**
+     * Returns a connection to the stripe of the thread, or discards it if it
+     * is closed or too old.
+     *
+     * @param con The database connection to be returned to the pool.
+     */
+    @Override
+    public void returnConnection(Connection con) {
+        if (con == null) {
+            return;
+        }
+        PooledConnection pooled = borrowed.remove(con);
+        if (pooled == null) {
+            // Not borrowed from this pool or already closed by closeAllConnections
+            Pool.close(con);
+            return;
+        }
+        leaks.onReturn(pooled);
+        long now = System.currentTimeMillis();
+        try {
+            if (con.isClosed()) {
+                // The driver closes the connections it has lost
+                breaker.onFailure();
+                discard(pooled);
+            } else if (pooled.isExpired(config.maxLifetime, now)) {
+                breaker.onSuccess();
+                discard(pooled);
+            } else {
+                breaker.onSuccess();
+                if (!con.getAutoCommit()) {
+                    // The next borrower must not inherit an open transaction
+                    con.rollback();
+                    con.setAutoCommit(true);
+                }
+                pooled.statements.release();
+                pooled.lastUsed = now;
+                stripes[stripe()].addFirst(pooled);
+                signal();
+            }
+        } catch (SQLException ex) {
+            LOGGER.log(Level.SEVERE, null, ex);
+            discard(pooled);
+        } finally {
+            permits.release();
+        }
+        LOGGER.fine("Returning a pool connection to the Pool.");
+    }
+
+    /**
+     * Gets a prepared statement of a borrowed connection from its statement
+     * cache.
+     *
+     * @param con A connection borrowed from this pool.
+     * @param sql The SQL text.
+     * @return the prepared statement.
+     * @throws SQLException If the statement cannot be prepared.
+     */
+    @Override
+    public PreparedStatement prepareStatement(Connection con, String sql) throws SQLException {
+        PooledConnection pooled = borrowed.get(con);
+        if (pooled == null) {
+            throw new SQLException("The connection is not borrowed from this pool.");
+        }
+        return pooled.statements.prepare(con, sql);
+    }
+
+    /**
+     * Closes the idle and the borrowed connections.
+     */
+    @Override
+    public void closeAllConnections() {
+        LOGGER.info("Closing all Pool connections.");
+        List<Connection> connections = new ArrayList<>();
+        for (ConcurrentLinkedDeque<PooledConnection> stripe : stripes) {
+            PooledConnection pooled;
+            while ((pooled = stripe.pollFirst()) != null) {
+                connections.add(pooled.connection);
+            }
+        }
+        for (Connection con : borrowed.keySet()) {
+            if (borrowed.remove(con) != null) {
+                connections.add(con);
+                // Its borrower does not give the permit back through returnConnection
+                permits.release();
+            }
+        }
+        total.addAndGet(-connections.size());
+        signal();
+        for (Connection con : connections) {
+            Pool.close(con);
+        }
+    }
+
+    @Override
+    public int getIdleCount() {
+        int idle = 0;
+        for (ConcurrentLinkedDeque<PooledConnection> stripe : stripes) {
+            idle += stripe.size();
+        }
+        return idle;
+    }
+
+    @Override
+    public int getBorrowedCount() {
+        return borrowed.size();
+    }
+
+    @Override
+    public long getCreatedCount() {
+        return created.get();
+    }
+
+    @Override
+    public CircuitBreaker getBreaker() {
+        return breaker;
+    }
+
+    @Override
+    public int getWaitingCount() {
+        return permits.getQueueLength();
+    }
+
+    @Override
+    public long getWaitTime() {
+        return waitTime.sum();
+    }
+
+    /**
+     * Finds an idle connection or creates one. The caller holds a permit, so
+     * there is always an idle connection or room for a new one, although
+     * another borrower may take it first. Then it waits until a connection
+     * is returned or closed and searches again.
+     *
+     * @return the connection.
+     * @throws ServerErrorException if a connection cannot be opened or the
+     * borrow timeout or the deadline of the request passes.
+     */
+    private PooledConnection borrow() throws ServerErrorException {
+        long end = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Deadline.bound(config.borrowTimeout));
+        int home = stripe();
+        while (true) {
+            for (int i = 0; i < stripes.length; i++) {
+                // The own stripe first, then steals from the others
+                PooledConnection pooled = stripes[(home + i) % stripes.length].pollFirst();
+                if (pooled == null) {
+                    continue;
+                }
+                if (isUsable(pooled)) {
+                    LOGGER.fine("Getting a pool connection from the Pool.");
+                    return pooled;
+                }
+                discard(pooled);
+            }
+            int current = total.get();
+            if (current < config.maxSize) {
+                if (total.compareAndSet(current, current + 1)) {
+                    return open();
+                }
+            } else {
+                await(end);
+            }
+        }
+    }
+
+    /**
+     * Waits until a connection is returned or closed. The lock is taken
+     * before looking again, so a signal sent after the search is not lost.
+     *
+     * @param end When the borrow times out, in System.nanoTime.
+     * @throws ServerErrorException if the time passes or the thread is
+     * interrupted.
+     */
+    private void await(long end) throws ServerErrorException {
+        long start = System.nanoTime();
+        waiters.incrementAndGet();
+        lock.lock();
+        try {
+            if (total.get() >= config.maxSize && getIdleCount() == 0) {
+                if (end - start <= 0) {
+                    if (Deadline.isExpired()) {
+                        Deadline.expire(Deadline.Cause.POOL);
+                    }
+                    throw new ServerErrorException("Timeout waiting for a pool connection.");
+                }
+                // The search is repeated after a signal or when the time is up
+                available.awaitNanos(end - start);
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new ServerErrorException(ex.getMessage());
+        } finally {
+            lock.unlock();
+            waiters.decrementAndGet();
+            waitTime.add(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Wakes the borrowers waiting for a connection, if there are any.
+     */
+    private void signal() {
+        if (waiters.get() > 0) {
+            lock.lock();
+            try {
+                available.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Opens a new connection. Its place is already counted in total.
+     *
+     * @return the new connection.
+     * @throws ServerErrorException if the connection cannot be opened.
+     */
+    private PooledConnection open() throws ServerErrorException {
+        try {
+            PooledConnection pooled = new PooledConnection(source.open(), config.statementCacheSize);
+            breaker.onSuccess();
+            created.incrementAndGet();
+            LOGGER.fine("First Pool connection.");
+            return pooled;
+        } catch (SQLException ex) {
+            breaker.onFailure();
+            total.decrementAndGet();
+            signal();
+            Logger.getLogger(StripedPool.class.getName()).log(Level.SEVERE, null, ex);
+            throw new ServerErrorException(ex.getMessage());
+        }
+    }
+
+    /**
+     * Checks an idle connection before lending it.
+     *
+     * @param pooled The connection.
+     * @return true if it can be used.
+     */
+    private boolean isUsable(PooledConnection pooled) {
+        if (pooled.isExpired(config.maxLifetime, System.currentTimeMillis())) {
+            return false;
+        }
+        return !config.validateOnBorrow || isValid(pooled);
+    }
+
+    /**
+     * Asks the database if a connection still works.
+     *
+     * @param pooled The connection.
+     * @return true if it works.
+     */
+    private boolean isValid(PooledConnection pooled) {
+        try {
+            return pooled.connection.isValid(config.validationTimeout);
+        } catch (SQLException ex) {
+            return false;
+        }
+    }
+
+    /**
+     * Closes a connection and frees its place in the pool.
+     *
+     * @param pooled The connection.
+     */
+    private void discard(PooledConnection pooled) {
+        Pool.close(pooled.connection);
+        total.decrementAndGet();
+        signal();
+    }
+
+    /**
+     * Gets the stripe of the current thread.
+     *
+     * @return the position of the stripe.
+     */
+    private int stripe() {
+        return (int) (Thread.currentThread().getId() % stripes.length);
+    }
+
+    /**
+     * Closes the idle connections that have expired, checks the ones not
+     * used since the last run and opens connections until the minimum size.
+     */
+    private void evict() {
+        long now = System.currentTimeMillis();
+        int evicted = 0;
+        for (ConcurrentLinkedDeque<PooledConnection> stripe : stripes) {
+            // A copy, the connections put back must not be visited again
+            for (PooledConnection pooled : new ArrayList<>(stripe)) {
+                boolean tooIdle = config.idleTimeout > 0 && now - pooled.lastUsed > config.idleTimeout
+                        && total.get() > config.minSize;
+                boolean check = !tooIdle && now - pooled.lastUsed >= config.evictionInterval;
+                if (!tooIdle && !check && !pooled.isExpired(config.maxLifetime, now)) {
+                    continue;
+                }
+                // Whoever removes it from the stripe owns the connection
+                if (!stripe.removeFirstOccurrence(pooled)) {
+                    continue;
+                }
+                if (check && !pooled.isExpired(config.maxLifetime, now) && isValid(pooled)) {
+                    stripe.addLast(pooled);
+                    signal();
+                } else {
+                    discard(pooled);
+                    evicted++;
+                }
+            }
+        }
+        if (evicted > 0) {
+            LOGGER.info("Evicted " + evicted + " Pool connections.");
+        }
+        while (breaker.getState() == CircuitBreaker.State.CLOSED) {
+            int current = total.get();
+            if (current >= config.minSize) {
+                return;
+            }
+            if (total.compareAndSet(current, current + 1)) {
+                try {
+                    stripes[(int) (created.get() % stripes.length)].addLast(open());
+                    signal();
+                } catch (ServerErrorException ex) {
+                    // The database is not reachable, it is tried again later
+                    return;
+                }
+            }
+        }
+    }
+}
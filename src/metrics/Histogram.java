@@ -0,0 +1,156 @@
+package metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A histogram of times in nanoseconds that can be recorded by many threads
+ * without locks or allocation. Every power of two is split in 32 buckets, so
+ * a percentile is read with an error below 3%, from one nanosecond to the
+ * largest long, in 1920 counters.
+ *
+ * @author Leire
+ */
+public class Histogram {
+
+    /**
+     * Bits of the value kept below its highest bit.
+     */
+    private static final int PRECISION = 5;
+    private static final int SUB_BUCKETS = 1 << PRECISION;
+    private static final int BUCKETS = (64 - PRECISION + 1) * SUB_BUCKETS;
+    private final String name;
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Creates an empty histogram.
+     *
+     * @param name The name of the histogram.
+     */
+    public Histogram(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Records a time.
+     *
+     * @param nanos The time in nanoseconds, negative times count as 0.
+     */
+    public void record(long nanos) {
+        long value = Math.max(nanos, 0);
+        counts.incrementAndGet(index(value));
+        count.increment();
+        sum.add(value);
+        long current;
+        while (value > (current = max.get()) && !max.compareAndSet(current, value)) {
+            // Another thread has changed the maximum, it is compared again
+        }
+    }
+
+    /**
+     * Records the time since a moment.
+     *
+     * @param startNanos The moment, from System.nanoTime.
+     */
+    public void recordSince(long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    /**
+     * Gets the name of the histogram.
+     *
+     * @return the name.
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Gets the number of times recorded.
+     *
+     * @return the count.
+     */
+    public long getCount() {
+        return count.sum();
+    }
+
+    /**
+     * Gets the average of the times recorded.
+     *
+     * @return the mean in nanoseconds, 0 if there are none.
+     */
+    public double getMean() {
+        long n = count.sum();
+        return n == 0 ? 0 : (double) sum.sum() / n;
+    }
+
+    /**
+     * Gets the highest time recorded.
+     *
+     * @return the maximum in nanoseconds.
+     */
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * Gets a percentile of the times recorded.
+     *
+     * @param percentile The percentile, from 0 to 100.
+     * @return the time in nanoseconds below which that percentage of times
+     * are, 0 if there are none.
+     */
+    public long getPercentile(double percentile) {
+        long total = 0;
+        long[] snapshot = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = counts.get(i);
+            total += snapshot[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max((long) Math.ceil(percentile / 100 * total), 1);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) {
+                return Math.min(highest(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    /**
+     * Finds the bucket of a value.
+     *
+     * @param value The value, not negative.
+     * @return the position of its counter.
+     */
+    static int index(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - PRECISION;
+        return (shift + 1) * SUB_BUCKETS + (int) ((value >>> shift) - SUB_BUCKETS);
+    }
+
+    /**
+     * Gets the highest value of a bucket.
+     *
+     * @param index The position of the counter.
+     * @return the value.
+     */
+    static long highest(int index) {
+        if (index < 2 * SUB_BUCKETS) {
+            return index;
+        }
+        int shift = index / SUB_BUCKETS - 1;
+        long lowest = (long) (index % SUB_BUCKETS + SUB_BUCKETS) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+}
@@ -0,0 +1,160 @@
+package metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * The metrics of the server: histograms of the times of every step of a
+ * request, counters of events and gauges that read a value when they are
+ * exported. The classes keep the histograms and counters they record in
+ * static fields, so recording only touches atomic counters. The metrics are
+ * exported through JMX as the attributes of the MBean "server:type=Metrics"
+ * and as a text dump.
+ *
+ * @author Leire
+ */
+public class Metrics {
+
+    private static final Logger LOGGER = Logger.getLogger(Metrics.class.getName());
+    private static final Map<String, Histogram> HISTOGRAMS = new ConcurrentSkipListMap<>();
+    private static final Map<String, LongAdder> COUNTERS = new ConcurrentSkipListMap<>();
+    private static final Map<String, LongSupplier> GAUGES = new ConcurrentSkipListMap<>();
+    private static final Map<String, Supplier<String>> DETAILS = new ConcurrentSkipListMap<>();
+
+    private Metrics() {
+    }
+
+    /**
+     * Gets a histogram, creating it the first time.
+     *
+     * @param name The name of the histogram.
+     * @return the histogram.
+     */
+    public static Histogram histogram(String name) {
+        return HISTOGRAMS.computeIfAbsent(name, Histogram::new);
+    }
+
+    /**
+     * Gets a counter, creating it the first time.
+     *
+     * @param name The name of the counter.
+     * @return the counter.
+     */
+    public static LongAdder counter(String name) {
+        return COUNTERS.computeIfAbsent(name, key -> new LongAdder());
+    }
+
+    /**
+     * Registers a value that is read when the metrics are exported. A gauge
+     * with the same name is replaced.
+     *
+     * @param name The name of the gauge.
+     * @param value Reads the value.
+     */
+    public static void gauge(String name, LongSupplier value) {
+        GAUGES.put(name, value);
+    }
+
+    /**
+     * Registers a text that is read when the metrics are exported, for values
+     * that are not a number.
+     *
+     * @param name The name of the text.
+     * @param value Reads the text.
+     */
+    public static void detail(String name, Supplier<String> value) {
+        DETAILS.put(name, value);
+    }
+
+    /**
+     * Gets the histograms, sorted by name.
+     *
+     * @return the histograms.
+     */
+    static Map<String, Histogram> getHistograms() {
+        return HISTOGRAMS;
+    }
+
+    /**
+     * Gets the counters, sorted by name.
+     *
+     * @return the counters.
+     */
+    static Map<String, LongAdder> getCounters() {
+        return COUNTERS;
+    }
+
+    /**
+     * Gets the gauges, sorted by name.
+     *
+     * @return the gauges.
+     */
+    static Map<String, LongSupplier> getGauges() {
+        return GAUGES;
+    }
+
+    /**
+     * Gets the texts, sorted by name.
+     *
+     * @return the texts.
+     */
+    static Map<String, Supplier<String>> getDetails() {
+        return DETAILS;
+    }
+
+    /**
+     * Registers the MBean of the metrics in the platform MBean server.
+     */
+    public static void registerMBean() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName("server:type=Metrics");
+            if (!server.isRegistered(name)) {
+                server.registerMBean(new MetricsExporter(), name);
+            }
+        } catch (JMException ex) {
+            LOGGER.log(Level.SEVERE, null, ex);
+        }
+    }
+
+    /**
+     * Writes all the metrics as text, the times in microseconds.
+     *
+     * @return the text.
+     */
+    public static String dump() {
+        StringBuilder text = new StringBuilder();
+        text.append(String.format("%-32s %10s %10s %10s %10s %10s %10s%n",
+                "histogram (us)", "count", "mean", "p50", "p99", "p99.9", "max"));
+        for (Histogram histogram : HISTOGRAMS.values()) {
+            text.append(String.format("%-32s %10d %10.1f %10d %10d %10d %10d%n", histogram.getName(),
+                    histogram.getCount(), histogram.getMean() / 1000, micros(histogram.getPercentile(50)),
+                    micros(histogram.getPercentile(99)), micros(histogram.getPercentile(99.9)),
+                    micros(histogram.getMax())));
+        }
+        for (Map.Entry<String, LongAdder> counter : COUNTERS.entrySet()) {
+            text.append(String.format("%-32s %10d%n", counter.getKey(), counter.getValue().sum()));
+        }
+        for (Map.Entry<String, LongSupplier> gauge : GAUGES.entrySet()) {
+            text.append(String.format("%-32s %10d%n", gauge.getKey(), gauge.getValue().getAsLong()));
+        }
+        for (Map.Entry<String, Supplier<String>> detail : DETAILS.entrySet()) {
+            text.append(String.format("%-32s %s%n", detail.getKey(), detail.getValue().get()));
+        }
+        return text.toString();
+    }
+
+    private static long micros(long nanos) {
+        return TimeUnit.NANOSECONDS.toMicros(nanos);
+    }
+}
@@ -0,0 +1,122 @@
+package metrics;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.ReflectionException;
+
+/**
+ * Exports the metrics through JMX. Every counter, gauge and text is an
+ * attribute, and every histogram gives the attributes name.count,
+ * name.mean, name.p50, name.p99, name.p999 and name.max in microseconds.
+ * The attributes are read only and they are listed again every time, so the
+ * metrics registered after the MBean are also exported.
+ *
+ * @author Leire
+ */
+class MetricsExporter implements DynamicMBean {
+
+    private static final String[] STATISTICS = {"count", "mean", "p50", "p99", "p999", "max"};
+
+    @Override
+    public Object getAttribute(String attribute) throws AttributeNotFoundException {
+        LongAdder counter = Metrics.getCounters().get(attribute);
+        if (counter != null) {
+            return counter.sum();
+        }
+        LongSupplier gauge = Metrics.getGauges().get(attribute);
+        if (gauge != null) {
+            return gauge.getAsLong();
+        }
+        Supplier<String> detail = Metrics.getDetails().get(attribute);
+        if (detail != null) {
+            return detail.get();
+        }
+        int dot = attribute.lastIndexOf('.');
+        Histogram histogram = dot < 0 ? null : Metrics.getHistograms().get(attribute.substring(0, dot));
+        if (histogram != null) {
+            switch (attribute.substring(dot + 1)) {
+                case "count":
+                    return histogram.getCount();
+                case "mean":
+                    return histogram.getMean() / 1000;
+                case "p50":
+                    return micros(histogram.getPercentile(50));
+                case "p99":
+                    return micros(histogram.getPercentile(99));
+                case "p999":
+                    return micros(histogram.getPercentile(99.9));
+                case "max":
+                    return micros(histogram.getMax());
+                default:
+            }
+        }
+        throw new AttributeNotFoundException(attribute);
+    }
+
+    @Override
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+        throw new AttributeNotFoundException("The metrics are read only: " + attribute.getName());
+    }
+
+    @Override
+    public AttributeList getAttributes(String[] attributes) {
+        AttributeList list = new AttributeList();
+        for (String attribute : attributes) {
+            try {
+                list.add(new Attribute(attribute, getAttribute(attribute)));
+            } catch (AttributeNotFoundException ex) {
+                // The attributes not found are left out of the list
+            }
+        }
+        return list;
+    }
+
+    @Override
+    public AttributeList setAttributes(AttributeList attributes) {
+        return new AttributeList();
+    }
+
+    @Override
+    public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+        throw new ReflectionException(new NoSuchMethodException(actionName));
+    }
+
+    @Override
+    public MBeanInfo getMBeanInfo() {
+        List<MBeanAttributeInfo> attributes = new ArrayList<>();
+        for (String name : Metrics.getHistograms().keySet()) {
+            for (String statistic : STATISTICS) {
+                attributes.add(new MBeanAttributeInfo(name + "." + statistic,
+                        statistic.equals("mean") ? "java.lang.Double" : "java.lang.Long",
+                        statistic.equals("count") ? "Times recorded" : "Microseconds", true, false, false));
+            }
+        }
+        for (String name : Metrics.getCounters().keySet()) {
+            attributes.add(new MBeanAttributeInfo(name, "java.lang.Long", "Counter", true, false, false));
+        }
+        for (String name : Metrics.getGauges().keySet()) {
+            attributes.add(new MBeanAttributeInfo(name, "java.lang.Long", "Gauge", true, false, false));
+        }
+        for (Map.Entry<String, Supplier<String>> detail : Metrics.getDetails().entrySet()) {
+            attributes.add(new MBeanAttributeInfo(detail.getKey(), "java.lang.String", "Text", true, false, false));
+        }
+        return new MBeanInfo(MetricsExporter.class.getName(), "Metrics of the sign up and sign in server",
+                attributes.toArray(new MBeanAttributeInfo[0]), null, new MBeanOperationInfo[0], null);
+    }
+
+    private static long micros(long nanos) {
+        return TimeUnit.NANOSECONDS.toMicros(nanos);
+    }
+}
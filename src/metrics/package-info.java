@@ -0,0 +1,4 @@
+/**
+ * This package stores the metrics of the server.
+ */
+package metrics;
@@ -0,0 +1,188 @@
+package service;
+
+import java.util.ResourceBundle;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
+import java.util.logging.Logger;
+
+/**
+ * Finds how many requests the server can have at once instead of using a
+ * fixed number. Every LIMIT_WINDOW milliseconds it compares the average
+ * latency of the requests with the lowest latency seen: while the latency is
+ * low and the limit is in use the limit grows by one, and when the latency is
+ * LIMIT_TOLERANCE times the lowest or there have been threads waiting for a
+ * pool connection at the end of two windows in a row it is multiplied by
+ * LIMIT_BACKOFF (additive increase, multiplicative decrease). The limit stays
+ * between LIMIT_MIN and the capacity of the dispatcher, and the last
+ * LIMIT_HISTORY values are kept.
+ *
+ * The limit counts the admitted connections, not the requests. With
+ * KEEP_ALIVE an idle session keeps its place, so the limit follows the open
+ * sessions instead of the load, and both should not be combined.
+ *
+ * @author Irati
+ */
+public class AdaptiveLimiter {
+
+    private static final Logger LOGGER = Logger.getLogger(AdaptiveLimiter.class.getName());
+    private final int minLimit;
+    private final int maxLimit;
+    private final double tolerance;
+    private final double backoff;
+    private final IntSupplier poolWaiters;
+    private volatile int limit;
+    private final LongAdder latencySum = new LongAdder();
+    private final LongAdder latencyCount = new LongAdder();
+    private final LongAccumulator inflight = new LongAccumulator(Math::max, 0);
+    /**
+     * Lowest average latency of a window, it drifts up slowly so the limiter
+     * follows a database that has become slower for good.
+     */
+    private double baseline = Double.MAX_VALUE;
+    /**
+     * If there were pool waiters at the end of the last window.
+     */
+    private boolean waited;
+    private final int[] history;
+    private int historyNext = 0;
+    private int historySize = 0;
+    private final ScheduledExecutorService timer;
+
+    /**
+     * Creates the limiter.
+     *
+     * @param minLimit The lowest limit.
+     * @param maxLimit The highest limit, the capacity of the dispatcher.
+     * @param tolerance How many times the lowest latency means saturation.
+     * @param backoff The factor of the limit when the server is saturated.
+     * @param window The milliseconds between two adjustments.
+     * @param historySize The number of limits kept.
+     * @param poolWaiters Gives the borrowers waiting for a pool connection.
+     */
+    public AdaptiveLimiter(int minLimit, int maxLimit, double tolerance, double backoff, long window,
+            int historySize, IntSupplier poolWaiters) {
+        this.maxLimit = Math.max(maxLimit, 1);
+        this.minLimit = Math.min(Math.max(minLimit, 1), this.maxLimit);
+        this.tolerance = tolerance;
+        this.backoff = backoff;
+        this.poolWaiters = poolWaiters;
+        this.limit = this.maxLimit;
+        this.history = new int[Math.max(historySize, 1)];
+        timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "adaptive-limiter");
+            thread.setDaemon(true);
+            return thread;
+        });
+        timer.scheduleWithFixedDelay(this::adjust, window, window, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Creates the limiter of the configuration file if LIMIT_MODE is
+     * ADAPTIVE.
+     *
+     * @param configFile The configuration file.
+     * @param maxLimit The capacity of the dispatcher.
+     * @param poolWaiters Gives the borrowers waiting for a pool connection.
+     * @return the limiter or null if the limit is static.
+     */
+    public static AdaptiveLimiter of(ResourceBundle configFile, int maxLimit, IntSupplier poolWaiters) {
+        if (!configFile.containsKey("LIMIT_MODE") || !configFile.getString("LIMIT_MODE").trim().equals("ADAPTIVE")) {
+            return null;
+        }
+        if (configFile.containsKey("KEEP_ALIVE") && Boolean.parseBoolean(configFile.getString("KEEP_ALIVE").trim())) {
+            LOGGER.warning("The adaptive limit counts connections, the idle keep alive sessions hold places.");
+        }
+        return new AdaptiveLimiter(
+                configFile.containsKey("LIMIT_MIN") ? Integer.parseInt(configFile.getString("LIMIT_MIN").trim()) : 2,
+                maxLimit,
+                configFile.containsKey("LIMIT_TOLERANCE") ? Double.parseDouble(configFile.getString("LIMIT_TOLERANCE").trim()) : 2.0,
+                configFile.containsKey("LIMIT_BACKOFF") ? Double.parseDouble(configFile.getString("LIMIT_BACKOFF").trim()) : 0.9,
+                configFile.containsKey("LIMIT_WINDOW") ? Long.parseLong(configFile.getString("LIMIT_WINDOW").trim()) : 200,
+                configFile.containsKey("LIMIT_HISTORY") ? Integer.parseInt(configFile.getString("LIMIT_HISTORY").trim()) : 300,
+                poolWaiters);
+    }
+
+    /**
+     * Gets the number of requests that can be admitted at once.
+     *
+     * @return the current limit.
+     */
+    public int getLimit() {
+        return limit;
+    }
+
+    /**
+     * Records the number of requests admitted after admitting one.
+     *
+     * @param admitted The admitted requests.
+     */
+    public void onAdmit(int admitted) {
+        inflight.accumulate(admitted);
+    }
+
+    /**
+     * Records the latency of a request.
+     *
+     * @param nanos The nanoseconds the request took.
+     */
+    public void onSample(long nanos) {
+        latencySum.add(nanos);
+        latencyCount.increment();
+    }
+
+    /**
+     * Gets the last limits, one per window.
+     *
+     * @return the limits, the oldest first.
+     */
+    public synchronized int[] getHistory() {
+        int[] copy = new int[historySize];
+        for (int i = 0; i < historySize; i++) {
+            copy[i] = history[(historyNext - historySize + i + history.length) % history.length];
+        }
+        return copy;
+    }
+
+    /**
+     * Stops adjusting the limit.
+     */
+    public void shutdown() {
+        timer.shutdown();
+    }
+
+    /**
+     * Adjusts the limit with the requests of the last window.
+     */
+    private synchronized void adjust() {
+        long count = latencyCount.sumThenReset();
+        long sum = latencySum.sumThenReset();
+        long peak = inflight.getThenReset();
+        int current = limit;
+        int next = current;
+        if (count > 0) {
+            double average = (double) sum / count;
+            baseline = Math.min(baseline * 1.001, average);
+            // A waiter seen once is a burst, in two windows in a row the pool is the bottleneck
+            boolean waiting = poolWaiters != null && poolWaiters.getAsInt() > 0;
+            boolean queued = waiting && waited;
+            waited = waiting;
+            if (average > baseline * tolerance || queued) {
+                next = Math.max(minLimit, (int) (current * backoff));
+            } else if (peak >= current / 2) {
+                // It only grows if the requests use the limit
+                next = Math.min(maxLimit, current + 1);
+            }
+        }
+        if (next != current) {
+            limit = next;
+            LOGGER.fine("Concurrency limit changed from " + current + " to " + next + ".");
+        }
+        history[historyNext] = next;
+        historyNext = (historyNext + 1) % history.length;
+        historySize = Math.min(historySize + 1, history.length);
+    }
+}
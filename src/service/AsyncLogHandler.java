@@ -0,0 +1,365 @@
+package service;
+
+import java.util.ResourceBundle;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.ErrorManager;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+import metrics.Metrics;
+
+/**
+ * A log handler that takes the records from the threads that serve the
+ * requests and writes them in a background thread. The records wait in a ring
+ * buffer of LOG_BUFFER_SIZE places allocated at the start, so logging only
+ * takes a place with compare and set and never waits for the console. The
+ * records of every type, the beginning of their message, are limited to
+ * LOG_RATE per second with bursts of LOG_BURST, and the records that do not
+ * fit in the buffer are dropped. Warnings and errors are never limited: if
+ * the buffer is full they are written by the thread that logs them. The
+ * records logged after the handler is closed are dropped. The dropped
+ * records are counted in the metrics and reported in the log. The
+ * drain thread sleeps while the buffer is empty and the thread that logs into
+ * it wakes it up.
+ *
+ * @author Irati
+ */
+public class AsyncLogHandler extends Handler {
+
+    /**
+     * Characters of the message that give the type of a record.
+     */
+    private static final int TYPE_LENGTH = 24;
+    private static final long REPORT_INTERVAL = TimeUnit.SECONDS.toNanos(1);
+    private final Handler[] targets;
+    private final LogRecord[] records;
+    /**
+     * The sequence of every place: equal to its position when it is free and
+     * to its position plus one when it has a record.
+     */
+    private final AtomicLongArray sequences;
+    private final int mask;
+    private final AtomicLong tail = new AtomicLong();
+    /**
+     * The next position to write, only used by the drain thread.
+     */
+    private long head;
+    /**
+     * Limits the records of every type, null if they are not limited.
+     */
+    private final RateLimiter limiter;
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder suppressed = new LongAdder();
+    private long reportedDropped;
+    private long reportedSuppressed;
+    private long reportedAt = System.nanoTime();
+    private final Thread drainer;
+    /**
+     * If the drain thread is parked or about to park with the buffer empty.
+     */
+    private volatile boolean sleeping;
+    private volatile boolean closed;
+    /**
+     * Held to write a record from the thread that logs it, and to close the
+     * handlers that write the records.
+     */
+    private final Object closeLock = new Object();
+
+    /**
+     * Creates the handler and starts its drain thread.
+     *
+     * @param targets The handlers that write the records.
+     * @param bufferSize The records that can wait, rounded up to a power of
+     * two.
+     * @param rate The records per second of every type, 0 for no limit.
+     * @param burst The records of a type that can be logged at once.
+     */
+    public AsyncLogHandler(Handler[] targets, int bufferSize, double rate, int burst) {
+        this.targets = targets.clone();
+        int capacity = Integer.highestOneBit(Math.max(bufferSize, 2) - 1) << 1;
+        records = new LogRecord[capacity];
+        sequences = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++) {
+            sequences.set(i, i);
+        }
+        mask = capacity - 1;
+        limiter = rate > 0 ? new RateLimiter("LOG", rate, burst, 10000, 60000) : null;
+        Level level = Level.OFF;
+        for (Handler target : targets) {
+            if (target.getLevel().intValue() < level.intValue()) {
+                level = target.getLevel();
+            }
+        }
+        setLevel(level);
+        drainer = new Thread(this::drain, "log-drainer");
+        drainer.setDaemon(true);
+        drainer.start();
+        Metrics.gauge("log.queued", () -> tail.get() - head);
+        Metrics.gauge("log.dropped", dropped::sum);
+        Metrics.gauge("log.suppressed", suppressed::sum);
+    }
+
+    /**
+     * Replaces the handlers of the root logger by an AsyncLogHandler that
+     * writes to them, if LOG_MODE is ASYNC in the configuration file.
+     *
+     * @param configFile The configuration file.
+     */
+    public static void install(ResourceBundle configFile) {
+        if (!configFile.containsKey("LOG_MODE") || !configFile.getString("LOG_MODE").trim().equals("ASYNC")) {
+            return;
+        }
+        int bufferSize = configFile.containsKey("LOG_BUFFER_SIZE")
+                ? Integer.parseInt(configFile.getString("LOG_BUFFER_SIZE").trim()) : 8192;
+        double rate = configFile.containsKey("LOG_RATE")
+                ? Double.parseDouble(configFile.getString("LOG_RATE").trim()) : 0;
+        int burst = configFile.containsKey("LOG_BURST")
+                ? Integer.parseInt(configFile.getString("LOG_BURST").trim()) : 100;
+        Logger root = Logger.getLogger("");
+        Handler[] targets = root.getHandlers();
+        for (Handler target : targets) {
+            root.removeHandler(target);
+        }
+        root.addHandler(new AsyncLogHandler(targets, bufferSize, rate, burst));
+    }
+
+    /**
+     * Puts a record in the buffer.
+     *
+     * @param record The record.
+     */
+    @Override
+    public void publish(LogRecord record) {
+        if (!isLoggable(record)) {
+            return;
+        }
+        boolean error = record.getLevel().intValue() >= Level.WARNING.intValue();
+        if (!error) {
+            if (limiter != null && !limiter.tryAcquire(type(record))) {
+                suppressed.increment();
+                wake();
+                return;
+            }
+        }
+        // Finds the caller while it is in the stack of this thread
+        record.getSourceClassName();
+        if (closed || !offer(record)) {
+            if (!error || !writeNow(record)) {
+                dropped.increment();
+            }
+        }
+        wake();
+    }
+
+    /**
+     * Flushes the handlers that write the records. The records still in the
+     * buffer are written later by the drain thread.
+     */
+    @Override
+    public void flush() {
+        for (Handler target : targets) {
+            target.flush();
+        }
+    }
+
+    /**
+     * Writes the records left in the buffer and closes the handlers that
+     * write them.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        LockSupport.unpark(drainer);
+        try {
+            drainer.join(TimeUnit.SECONDS.toMillis(1));
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (closeLock) {
+            for (Handler target : targets) {
+                target.close();
+            }
+        }
+    }
+
+    /**
+     * Writes a record from the thread that logs it, unless the handlers are
+     * closed.
+     *
+     * @param record The record.
+     * @return false if it was not written.
+     */
+    private boolean writeNow(LogRecord record) {
+        synchronized (closeLock) {
+            if (closed) {
+                return false;
+            }
+            write(record);
+            return true;
+        }
+    }
+
+    /**
+     * Gets the number of records dropped because the buffer was full.
+     *
+     * @return the dropped records.
+     */
+    public long getDroppedCount() {
+        return dropped.sum();
+    }
+
+    /**
+     * Gets the number of records dropped by the limit of their type.
+     *
+     * @return the suppressed records.
+     */
+    public long getSuppressedCount() {
+        return suppressed.sum();
+    }
+
+    private boolean offer(LogRecord record) {
+        while (true) {
+            long position = tail.get();
+            int index = (int) position & mask;
+            long difference = sequences.get(index) - position;
+            if (difference < 0) {
+                // The buffer is full
+                return false;
+            }
+            if (difference == 0 && tail.compareAndSet(position, position + 1)) {
+                records[index] = record;
+                sequences.set(index, position + 1);
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Unparks the drain thread if it sleeps. It only sleeps with the buffer
+     * empty, so it is woken when the first record arrives.
+     */
+    private void wake() {
+        if (sleeping) {
+            LockSupport.unpark(drainer);
+        }
+    }
+
+    private LogRecord poll() {
+        int index = (int) head & mask;
+        if (sequences.get(index) != head + 1) {
+            return null;
+        }
+        LogRecord record = records[index];
+        records[index] = null;
+        sequences.set(index, head + records.length);
+        head++;
+        return record;
+    }
+
+    /**
+     * Writes the records of the buffer until the handler is closed, and then
+     * the ones left.
+     */
+    private void drain() {
+        while (!closed) {
+            if (!deliver()) {
+                sleep();
+            }
+            if (System.nanoTime() - reportedAt > REPORT_INTERVAL) {
+                report();
+            }
+        }
+        // The handlers are not closed while the last records are written
+        synchronized (closeLock) {
+            deliver();
+            report();
+        }
+    }
+
+    /**
+     * Parks the drain thread until a record is logged, or until the next
+     * report if there are dropped records not reported yet.
+     */
+    private void sleep() {
+        sleeping = true;
+        // A record offered before the flag was set is not followed by a wake
+        if (!closed && sequences.get((int) head & mask) != head + 1) {
+            if (dropped.sum() != reportedDropped || suppressed.sum() != reportedSuppressed) {
+                LockSupport.parkNanos(this, REPORT_INTERVAL);
+            } else {
+                LockSupport.park(this);
+            }
+        }
+        sleeping = false;
+    }
+
+    /**
+     * Writes the records of the buffer.
+     *
+     * @return false if there were none.
+     */
+    private boolean deliver() {
+        LogRecord record = poll();
+        if (record == null) {
+            return false;
+        }
+        do {
+            write(record);
+        } while ((record = poll()) != null);
+        flush();
+        return true;
+    }
+
+    /**
+     * Logs how many records have been dropped since the last report, if any.
+     */
+    private void report() {
+        reportedAt = System.nanoTime();
+        long totalDropped = dropped.sum();
+        long totalSuppressed = suppressed.sum();
+        if (totalDropped == reportedDropped && totalSuppressed == reportedSuppressed) {
+            return;
+        }
+        LogRecord record = new LogRecord(Level.WARNING, (totalDropped - reportedDropped)
+                + " log records dropped with the buffer full and " + (totalSuppressed - reportedSuppressed)
+                + " over the limit of their type.");
+        record.setLoggerName(AsyncLogHandler.class.getName());
+        record.setSourceClassName(AsyncLogHandler.class.getName());
+        record.setSourceMethodName("report");
+        reportedDropped = totalDropped;
+        reportedSuppressed = totalSuppressed;
+        write(record);
+        flush();
+    }
+
+    private void write(LogRecord record) {
+        for (Handler target : targets) {
+            try {
+                target.publish(record);
+            } catch (RuntimeException ex) {
+                reportError(null, ex, ErrorManager.WRITE_FAILURE);
+            }
+        }
+    }
+
+    /**
+     * Gets the type of a record, the beginning of its message before any
+     * number, so the messages that only differ in a count, a login or an
+     * address are of the same type.
+     */
+    private static String type(LogRecord record) {
+        String message = String.valueOf(record.getMessage());
+        int end = Math.min(message.length(), TYPE_LENGTH);
+        for (int i = 0; i < end; i++) {
+            if (Character.isDigit(message.charAt(i))) {
+                end = i;
+            }
+        }
+        return message.substring(0, end);
+    }
+}
@@ -0,0 +1,164 @@
+package service;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StreamCorruptedException;
+import message.Message;
+import message.ResponseRequest;
+import models.Privilege;
+import models.User;
+
+/**
+ * Compact binary codec for ResponseRequest. After the four bytes that the
+ * server sends when the connection is opened, the client sends the MAGIC
+ * value and then every message is a frame made of its length and its
+ * payload:
+ * <ul>
+ * <li>the position of the Message in its enum, one byte.</li>
+ * <li>if there is a user, one byte with 1 or 0.</li>
+ * <li>email, password, name, street, zip and city, each one as a byte with 1
+ * or 0 for null followed by the text in modified UTF-8.</li>
+ * <li>the position of the Privilege in its enum or -1 for null, one
+ * byte.</li>
+ * </ul>
+ * Client and server share the library of the enums, so their positions are
+ * the same at both sides.
+ *
+ * @author Irati
+ */
+public class BinaryCodec implements MessageCodec {
+
+    /**
+     * First bytes sent by a binary client: "SUB" and the version 1.
+     */
+    public static final int MAGIC = 0x53554201;
+    /**
+     * Biggest payload accepted.
+     */
+    public static final int MAX_FRAME_BYTES = 16 * 1024;
+    private static final Message[] MESSAGES = Message.values();
+    private static final Privilege[] PRIVILEGES = Privilege.values();
+    private final DataInputStream read;
+    private final DataOutputStream write;
+
+    /**
+     * Creates the codec. The MAGIC value has already been read.
+     *
+     * @param in The input stream of the client.
+     * @param out The output stream of the client.
+     */
+    public BinaryCodec(InputStream in, OutputStream out) {
+        read = new DataInputStream(new BufferedInputStream(in));
+        write = new DataOutputStream(new BufferedOutputStream(out));
+    }
+
+    @Override
+    public ResponseRequest read() throws IOException {
+        int length = read.readInt();
+        if (length <= 0 || length > MAX_FRAME_BYTES) {
+            throw new StreamCorruptedException("Invalid frame length: " + length);
+        }
+        byte[] payload = new byte[length];
+        read.readFully(payload);
+        return decode(payload, 0, length);
+    }
+
+    @Override
+    public void write(ResponseRequest response) throws IOException {
+        write.write(encode(response));
+        write.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        write.close();
+        read.close();
+    }
+
+    /**
+     * Builds the frame of a message, with its length in front.
+     *
+     * @param responseRequest The message.
+     * @return the frame.
+     * @throws IOException If the message cannot be written.
+     */
+    public static byte[] encode(ResponseRequest responseRequest) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+        DataOutputStream out = new DataOutputStream(bytes);
+        // Room for the length, written at the end
+        out.writeInt(0);
+        out.writeByte(responseRequest.getMessage() == null ? -1 : responseRequest.getMessage().ordinal());
+        User user = responseRequest.getUser();
+        out.writeBoolean(user != null);
+        if (user != null) {
+            writeText(out, user.getEmail());
+            writeText(out, user.getPassword());
+            writeText(out, user.getName());
+            writeText(out, user.getStreet());
+            writeText(out, user.getZip());
+            writeText(out, user.getCity());
+            out.writeByte(user.getPrivilege() == null ? -1 : user.getPrivilege().ordinal());
+        }
+        byte[] frame = bytes.toByteArray();
+        int length = frame.length - 4;
+        frame[0] = (byte) (length >>> 24);
+        frame[1] = (byte) (length >>> 16);
+        frame[2] = (byte) (length >>> 8);
+        frame[3] = (byte) length;
+        return frame;
+    }
+
+    /**
+     * Rebuilds a message from the payload of a frame.
+     *
+     * @param payload The bytes that contain the payload.
+     * @param offset Where the payload starts.
+     * @param length The length of the payload.
+     * @return the message.
+     * @throws IOException If the payload is not valid.
+     */
+    public static ResponseRequest decode(byte[] payload, int offset, int length) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload, offset, length));
+        ResponseRequest responseRequest = new ResponseRequest();
+        int message = in.readByte();
+        // -1 is a message without Message, the requests are checked by the Worker
+        if (message < -1 || message >= MESSAGES.length) {
+            throw new StreamCorruptedException("Unknown message: " + message);
+        }
+        responseRequest.setMessage(message < 0 ? null : MESSAGES[message]);
+        if (in.readBoolean()) {
+            User user = new User();
+            user.setEmail(readText(in));
+            user.setPassword(readText(in));
+            user.setName(readText(in));
+            user.setStreet(readText(in));
+            user.setZip(readText(in));
+            user.setCity(readText(in));
+            int privilege = in.readByte();
+            if (privilege < -1 || privilege >= PRIVILEGES.length) {
+                throw new StreamCorruptedException("Unknown privilege: " + privilege);
+            }
+            user.setPrivilege(privilege < 0 ? null : PRIVILEGES[privilege]);
+            responseRequest.setUser(user);
+        }
+        return responseRequest;
+    }
+
+    private static void writeText(DataOutputStream out, String text) throws IOException {
+        out.writeBoolean(text != null);
+        if (text != null) {
+            out.writeUTF(text);
+        }
+    }
+
+    private static String readText(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+}
@@ -1,11 +1,15 @@
 package service;
 
+import dataAccess.LoginIndex;
 import dataAccess.Pool;
 import dataAccess.PoolFactory;
 import static java.lang.System.exit;
+import exceptions.ServerErrorException;
 import java.util.Scanner;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 import dataAccess.PoolCreatable;
+import metrics.Metrics;
 
 /**
  * This class represents a thread responsible of shutting down the server.
@@ -31,15 +35,30 @@ public class CloseThread extends Thread {
         int userInput = 0;
         // Logger to indicate which key must be pressed to close the server
         logger.info("Server is currently running. If you want to finish it PRESS 1 and then ENTER.");
+        logger.info("PRESS 2 and then ENTER to rebuild the login index.");
+        logger.info("PRESS 3 and then ENTER to print the metrics.");
         do {
             // Waits for the response
             userInput = scanner.nextInt();
+            if (userInput == 2) {
+                // Rebuilds the index of logins while the server keeps running
+                try {
+                    LoginIndex.getIndex().rebuild();
+                } catch (ServerErrorException ex) {
+                    logger.log(Level.SEVERE, null, ex);
+                }
+            } else if (userInput == 3) {
+                // Prints the latencies, counters and gauges of the server
+                logger.info("Metrics:\n" + Metrics.dump());
+            }
         } while (userInput != 1);
         // If the established key is pressed shuts down the server with an exit(0)
         if (userInput == 1) {
             logger.info("Server is shutting down.");
+            // Stop executing workers
+            Server.stopWorkers();
             // Close the connections of the pool
-            PoolFactory.getPool().closeAllConnections();
+            PoolFactory.closeAllPools();
             exit(0);
         }
 
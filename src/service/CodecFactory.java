@@ -0,0 +1,99 @@
+package service;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.ObjectStreamConstants;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.io.StreamCorruptedException;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ResourceBundle;
+
+/**
+ * A factory class to create the codec of a client connection. When the
+ * connection is opened the server sends the header of a Java serialization
+ * stream, as it always has, and then looks at the first bytes of the client:
+ * a binary client sends BinaryCodec.MAGIC and any other client is served
+ * with Java serialization.
+ *
+ * @author Irati
+ */
+public class CodecFactory {
+
+    private static final int NEGOTIATION_TIMEOUT = negotiationTimeout();
+
+    /**
+     * Default empty constructor.
+     */
+    public CodecFactory() {
+    }
+
+    /**
+     * Sends the server header and chooses the codec of a client.
+     *
+     * @param client The client's socket connection.
+     * @return the codec for the client.
+     * @throws IOException If the connection fails or the client sends an
+     * unknown version of the binary protocol.
+     */
+    public static MessageCodec getCodec(Socket client) throws IOException {
+        return getCodec(client, NEGOTIATION_TIMEOUT);
+    }
+
+    /**
+     * Sends the server header and chooses the codec of a client, waiting for
+     * its first bytes at most some time.
+     *
+     * @param client The client's socket connection.
+     * @param timeout The milliseconds to wait for the first bytes of the
+     * client, NEGOTIATION_TIMEOUT if it is longer.
+     * @return the codec for the client.
+     * @throws IOException If the connection fails or the client sends an
+     * unknown version of the binary protocol.
+     */
+    public static MessageCodec getCodec(Socket client, int timeout) throws IOException {
+        OutputStream out = client.getOutputStream();
+        out.write(new byte[]{
+            (byte) (ObjectStreamConstants.STREAM_MAGIC >>> 8), (byte) ObjectStreamConstants.STREAM_MAGIC,
+            (byte) (ObjectStreamConstants.STREAM_VERSION >>> 8), (byte) ObjectStreamConstants.STREAM_VERSION});
+        out.flush();
+
+        PushbackInputStream in = new PushbackInputStream(client.getInputStream(), 2);
+        int previousTimeout = client.getSoTimeout();
+        int first;
+        client.setSoTimeout(Math.min(timeout, NEGOTIATION_TIMEOUT));
+        try {
+            first = in.read();
+        } catch (SocketTimeoutException ex) {
+            // An old client that waits for the header before sending anything
+            return new SerialCodec(in, out);
+        } finally {
+            client.setSoTimeout(previousTimeout);
+        }
+        if (first < 0) {
+            throw new StreamCorruptedException("Connection closed before the first request.");
+        }
+        int second = in.read();
+        if (first == (BinaryCodec.MAGIC >>> 24) && second == ((BinaryCodec.MAGIC >>> 16) & 0xFF)) {
+            DataInputStream data = new DataInputStream(in);
+            int rest = data.readUnsignedShort();
+            if (rest != (BinaryCodec.MAGIC & 0xFFFF)) {
+                throw new StreamCorruptedException("Unsupported binary protocol: " + Integer.toHexString(rest));
+            }
+            return new BinaryCodec(in, out);
+        }
+        // Gives back the bytes so the ObjectInputStream reads the whole header
+        if (second >= 0) {
+            in.unread(second);
+        }
+        in.unread(first);
+        return new SerialCodec(in, out);
+    }
+
+    private static int negotiationTimeout() {
+        ResourceBundle configFile = ResourceBundle.getBundle("config.config");
+        return configFile.containsKey("NEGOTIATION_TIMEOUT")
+                ? Integer.parseInt(configFile.getString("NEGOTIATION_TIMEOUT").trim()) : 2000;
+    }
+}
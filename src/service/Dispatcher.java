@@ -0,0 +1,266 @@
+package service;
+
+import dataAccess.PoolFactory;
+import java.util.Arrays;
+import java.util.ResourceBundle;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import metrics.Metrics;
+
+/**
+ * This class decides how the workers are executed. Depending on the
+ * DISPATCH_MODE property a worker runs on its own thread (THREAD), on a fixed
+ * pool of MAX_CONNECTIONS threads (POOL) or on a virtual thread (VIRTUAL). In
+ * the POOL and VIRTUAL modes up to WAIT_QUEUE_SIZE workers wait for a free slot
+ * before the client is rejected with a capacity error. If LIMIT_MODE is
+ * ADAPTIVE the number of admitted workers is limited by an AdaptiveLimiter
+ * instead, between LIMIT_MIN and that capacity.
+ *
+ * @author Irati
+ */
+public class Dispatcher {
+
+    /**
+     * The ways a worker can be executed.
+     */
+    public enum Mode {
+        /**
+         * A new thread for every worker.
+         */
+        THREAD,
+        /**
+         * A fixed pool of threads with a bounded wait queue.
+         */
+        POOL,
+        /**
+         * A virtual thread for every worker, limited by a semaphore.
+         */
+        VIRTUAL
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(Dispatcher.class.getName());
+    private final Mode mode;
+    private final int maxConnections;
+    private final int queueSize;
+    private final ExecutorService executor;
+    private final Semaphore running;
+    private final AtomicInteger admitted = new AtomicInteger();
+    private final AdaptiveLimiter limiter;
+
+    /**
+     * Creates the dispatcher with the values of the configuration file.
+     *
+     * @param configFile The configuration file of the server.
+     */
+    public Dispatcher(ResourceBundle configFile) {
+        this(configFile.containsKey("DISPATCH_MODE") ? Mode.valueOf(configFile.getString("DISPATCH_MODE").trim()) : Mode.THREAD,
+                Integer.parseInt(configFile.getString("MAX_CONNECTIONS").trim()),
+                configFile.containsKey("WAIT_QUEUE_SIZE") ? Integer.parseInt(configFile.getString("WAIT_QUEUE_SIZE").trim()) : 0,
+                configFile);
+    }
+
+    private Dispatcher(Mode mode, int maxConnections, int queueSize, ResourceBundle configFile) {
+        this(mode, maxConnections, queueSize, AdaptiveLimiter.of(configFile,
+                maxConnections + (mode == Mode.THREAD ? 0 : Math.max(queueSize, 0)),
+                () -> PoolFactory.getPool().getWaitingCount()));
+    }
+
+    /**
+     * Creates the dispatcher.
+     *
+     * @param mode The way the workers are executed.
+     * @param maxConnections The maximum number of workers running at once.
+     * @param queueSize The maximum number of workers waiting for a slot.
+     */
+    public Dispatcher(Mode mode, int maxConnections, int queueSize) {
+        this(mode, maxConnections, queueSize, (AdaptiveLimiter) null);
+    }
+
+    /**
+     * Creates the dispatcher with an adaptive limit.
+     *
+     * @param mode The way the workers are executed.
+     * @param maxConnections The maximum number of workers running at once.
+     * @param queueSize The maximum number of workers waiting for a slot.
+     * @param limiter The limit of running and waiting workers, or null to
+     * use the sum of both maximums.
+     */
+    public Dispatcher(Mode mode, int maxConnections, int queueSize, AdaptiveLimiter limiter) {
+        this.maxConnections = maxConnections;
+        this.limiter = limiter;
+        this.queueSize = mode == Mode.THREAD ? 0 : Math.max(queueSize, 0);
+        this.running = mode == Mode.VIRTUAL ? new Semaphore(maxConnections) : null;
+        ExecutorService created = null;
+        if (mode == Mode.POOL) {
+            created = new ThreadPoolExecutor(maxConnections, maxConnections, 0L, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<Runnable>(Math.max(this.queueSize, 1)), new WorkerThreadFactory());
+        } else if (mode == Mode.VIRTUAL) {
+            created = newVirtualExecutor();
+        }
+        if (mode == Mode.VIRTUAL && created == null) {
+            // The JVM has no virtual threads, the pool is the closest behaviour
+            LOGGER.warning("Virtual threads are not available, using a pool of threads.");
+            mode = Mode.POOL;
+            created = new ThreadPoolExecutor(maxConnections, maxConnections, 0L, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<Runnable>(Math.max(this.queueSize, 1)), new WorkerThreadFactory());
+        }
+        this.mode = mode;
+        this.executor = created;
+        Metrics.gauge("dispatcher.admitted", this::getAdmitted);
+        Metrics.gauge("dispatcher.limit", this::getLimit);
+        if (limiter != null) {
+            Metrics.detail("dispatcher.limit.history", () -> Arrays.toString(limiter.getHistory()));
+        }
+        LOGGER.info("Dispatching workers in " + mode + " mode" + (limiter == null ? "." : " with an adaptive limit."));
+    }
+
+    /**
+     * Admits a worker and executes it. If the server already has the maximum
+     * of running and waiting workers, or the adaptive limit, the worker is
+     * not executed.
+     *
+     * @param worker The worker to execute.
+     * @return true if the worker was admitted, false if the server is full.
+     */
+    public boolean dispatch(Runnable worker) {
+        // Reserves a place without the race of a check followed by an increment
+        int max = getLimit();
+        int current;
+        do {
+            current = admitted.get();
+            if (current >= max) {
+                return false;
+            }
+        } while (!admitted.compareAndSet(current, current + 1));
+        if (limiter != null) {
+            limiter.onAdmit(current + 1);
+        }
+
+        try {
+            switch (mode) {
+                case POOL:
+                    executor.execute(worker);
+                    break;
+                case VIRTUAL:
+                    executor.execute(() -> {
+                        running.acquireUninterruptibly();
+                        try {
+                            worker.run();
+                        } finally {
+                            running.release();
+                        }
+                    });
+                    break;
+                default:
+                    new Thread(worker).start();
+            }
+        } catch (RejectedExecutionException | OutOfMemoryError ex) {
+            LOGGER.log(Level.SEVERE, null, ex);
+            admitted.decrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Frees the place of a worker that has finished.
+     */
+    public void release() {
+        admitted.decrementAndGet();
+    }
+
+    /**
+     * Records how long a request took, for the adaptive limit.
+     *
+     * @param nanos The nanoseconds since the request was read.
+     */
+    public void record(long nanos) {
+        if (limiter != null) {
+            limiter.onSample(nanos);
+        }
+    }
+
+    /**
+     * Gets the number of workers that can be running or waiting.
+     *
+     * @return the current limit.
+     */
+    public int getLimit() {
+        return limiter == null ? maxConnections + queueSize : limiter.getLimit();
+    }
+
+    /**
+     * Gets the adaptive limiter.
+     *
+     * @return the limiter or null if the limit is static.
+     */
+    public AdaptiveLimiter getLimiter() {
+        return limiter;
+    }
+
+    /**
+     * Gets the number of workers running or waiting.
+     *
+     * @return the admitted workers.
+     */
+    public int getAdmitted() {
+        return admitted.get();
+    }
+
+    /**
+     * Gets the mode in use.
+     *
+     * @return the dispatch mode.
+     */
+    public Mode getMode() {
+        return mode;
+    }
+
+    /**
+     * Stops accepting workers and lets the running ones finish.
+     */
+    public void shutdown() {
+        if (executor != null) {
+            executor.shutdown();
+        }
+        if (limiter != null) {
+            limiter.shutdown();
+        }
+    }
+
+    /**
+     * Creates an executor with a virtual thread per task. It is looked up by
+     * reflection so the server still runs on JVMs without virtual threads.
+     *
+     * @return the executor or null if the JVM does not support it.
+     */
+    private static ExecutorService newVirtualExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException ex) {
+            return null;
+        }
+    }
+
+    /**
+     * Names the threads of the pool so they can be told apart in the logs.
+     */
+    private static class WorkerThreadFactory implements ThreadFactory {
+
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            return new Thread(r, "worker-" + count.incrementAndGet());
+        }
+    }
+}
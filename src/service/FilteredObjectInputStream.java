@@ -0,0 +1,44 @@
+package service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InvalidClassException;
+import java.io.ObjectInputStream;
+import java.io.ObjectStreamClass;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * An ObjectInputStream that only creates the classes of a request. Any other
+ * class sent by a client is refused before it is loaded, so the stream cannot
+ * be used to build objects that the server does not expect.
+ *
+ * @author Irati
+ */
+class FilteredObjectInputStream extends ObjectInputStream {
+
+    /**
+     * The classes of a ResponseRequest, and Enum that every enum extends.
+     */
+    private static final Set<String> ALLOWED = new HashSet<>(Arrays.asList(
+            "message.ResponseRequest", "message.Message", "models.User", "models.Privilege", "java.lang.Enum"));
+
+    /**
+     * Creates the stream and reads its header.
+     *
+     * @param in The bytes of the client.
+     * @throws IOException If the header cannot be read.
+     */
+    FilteredObjectInputStream(InputStream in) throws IOException {
+        super(in);
+    }
+
+    @Override
+    protected Class<?> resolveClass(ObjectStreamClass desc) throws IOException, ClassNotFoundException {
+        if (!ALLOWED.contains(desc.getName())) {
+            throw new InvalidClassException(desc.getName(), "Class not allowed in a request.");
+        }
+        return super.resolveClass(desc);
+    }
+}
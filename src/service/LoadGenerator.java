@@ -0,0 +1,428 @@
+package service;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectStreamConstants;
+import java.io.OutputStream;
+import java.io.StreamCorruptedException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.ResourceBundle;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import message.Message;
+import message.ResponseRequest;
+import metrics.Histogram;
+import models.User;
+
+/**
+ * A headless client that sends sign ups and sign ins to a running server
+ * from many virtual clients at once, with the same protocol as the desktop
+ * application, and reports the throughput, the latency and the responses.
+ * It is run with the options that change, for example:
+ *
+ * java -cp server-signupsignin-1.0.jar service.LoadGenerator --clients 32
+ * --mode OPEN --rate 500 --signups 0.1
+ *
+ * The options are --host (localhost), --port (PORT of the configuration
+ * file), --clients (16 virtual clients), --mode (CLOSED, every client sends
+ * its next request when it gets a response, or OPEN, the requests start at
+ * --rate per second whether the earlier ones have finished or not),
+ * --signups (0.1 of the requests are sign ups and the rest sign ins),
+ * --users (100 users signed up before the measurement, the ones that sign
+ * in), --codec (SERIAL or BINARY), --keep-alive (several requests per
+ * connection, for a server with KEEP_ALIVE = true), --warmup (5 seconds not
+ * measured), --duration (30 seconds measured) and --timeout (10000
+ * milliseconds to connect and to wait for a response).
+ *
+ * In the OPEN mode the latency is counted from the moment a request should
+ * have started, so the time it waits for a free client is not hidden when
+ * the server falls behind.
+ *
+ * @author Irati
+ */
+public class LoadGenerator {
+
+    /**
+     * How the requests are started.
+     */
+    public enum Mode {
+        /**
+         * Every client sends its next request when it gets a response.
+         */
+        CLOSED,
+        /**
+         * The requests start at a fixed rate.
+         */
+        OPEN
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(LoadGenerator.class.getName());
+    private static final String PASSWORD = "abcd*1234";
+    private final String host;
+    private final int port;
+    private final int clients;
+    private final Mode mode;
+    private final double rate;
+    private final double signUps;
+    private final int users;
+    private final boolean binary;
+    private final boolean keepAlive;
+    private final long warmup;
+    private final long duration;
+    private final int timeout;
+    /**
+     * Begins the logins of this run, so the sign ups of another run do not
+     * find them.
+     */
+    private final String prefix = "load" + Long.toString(System.currentTimeMillis(), 36);
+    private final AtomicLong nextLogin = new AtomicLong();
+    private final List<String> logins = new ArrayList<>();
+    private final Histogram latency = new Histogram("load.latency");
+    private final Map<Message, Histogram> latencies = new EnumMap<>(Message.class);
+    private final Map<Message, LongAdder> responses = new EnumMap<>(Message.class);
+    /**
+     * The I/O errors by their exception and message.
+     */
+    private final Map<String, LongAdder> errors = new ConcurrentHashMap<>();
+
+    /**
+     * Creates the generator of some options.
+     *
+     * @param options The values of the options, by their name without the
+     * dashes. The ones that are missing take their default value.
+     */
+    public LoadGenerator(Map<String, String> options) {
+        ResourceBundle configFile = ResourceBundle.getBundle("config.config");
+        String defaultPort = configFile.containsKey("PORT") ? configFile.getString("PORT").trim() : "6000";
+        host = option(options, "host", "localhost");
+        port = Integer.parseInt(option(options, "port", defaultPort));
+        clients = Integer.parseInt(option(options, "clients", "16"));
+        mode = Mode.valueOf(option(options, "mode", "CLOSED").toUpperCase(Locale.ROOT));
+        rate = Double.parseDouble(option(options, "rate", "500"));
+        signUps = Double.parseDouble(option(options, "signups", "0.1"));
+        users = Integer.parseInt(option(options, "users", "100"));
+        binary = option(options, "codec", "SERIAL").equalsIgnoreCase("BINARY");
+        keepAlive = Boolean.parseBoolean(option(options, "keep-alive", "false"));
+        warmup = TimeUnit.SECONDS.toNanos(Long.parseLong(option(options, "warmup", "5")));
+        duration = TimeUnit.SECONDS.toNanos(Long.parseLong(option(options, "duration", "30")));
+        timeout = Integer.parseInt(option(options, "timeout", "10000"));
+        if (clients <= 0 || rate <= 0 || duration <= 0 || signUps < 0 || signUps > 1) {
+            throw new IllegalArgumentException("clients, rate and duration must be positive and signups from 0 to 1.");
+        }
+        latencies.put(Message.SIGNUP, new Histogram("load.signup"));
+        latencies.put(Message.SIGNIN, new Histogram("load.signin"));
+        for (Message message : Message.values()) {
+            responses.put(message, new LongAdder());
+        }
+    }
+
+    /**
+     * Main method for the load generator.
+     *
+     * @param args The options, --name value, or only --name for true.
+     */
+    public static void main(String[] args) {
+        Map<String, String> options = new HashMap<>();
+        for (int i = 0; i < args.length; i++) {
+            if (!args[i].startsWith("--")) {
+                throw new IllegalArgumentException("Unknown argument: " + args[i]);
+            }
+            String name = args[i].substring(2);
+            if (i + 1 < args.length && !args[i + 1].startsWith("--")) {
+                options.put(name, args[++i]);
+            } else {
+                options.put(name, "true");
+            }
+        }
+        try {
+            LoadGenerator generator = new LoadGenerator(options);
+            generator.prepare();
+            generator.run();
+            generator.report();
+        } catch (IOException | InterruptedException ex) {
+            LOGGER.log(Level.SEVERE, null, ex);
+        }
+    }
+
+    /**
+     * Signs up the users that sign in during the run.
+     *
+     * @throws IOException If the server cannot be reached.
+     */
+    public void prepare() throws IOException {
+        Session session = new Session();
+        int failed = 0;
+        try {
+            for (int i = 0; i < users; i++) {
+                String login = newLogin();
+                ResponseRequest response = session.send(request(Message.SIGNUP, login));
+                if (response.getMessage() == Message.RESPONSE_OK) {
+                    logins.add(login);
+                } else {
+                    failed++;
+                }
+            }
+        } catch (ClassNotFoundException ex) {
+            throw new StreamCorruptedException(ex.getMessage());
+        } finally {
+            session.close();
+        }
+        if (failed > 0) {
+            LOGGER.warning(failed + " of the " + users + " users to sign in could not be signed up.");
+        }
+        if (logins.isEmpty() && signUps < 1) {
+            throw new IOException("No user has been signed up to sign in.");
+        }
+    }
+
+    /**
+     * Sends the requests for the warm up and the measured time.
+     *
+     * @throws InterruptedException If the thread is interrupted while the
+     * clients run.
+     */
+    public void run() throws InterruptedException {
+        AtomicInteger number = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(clients, r -> {
+            Thread thread = new Thread(r, "load-client-" + number.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        long begin = System.nanoTime();
+        long measured = begin + warmup;
+        long end = measured + duration;
+        // The OPEN mode gives every request a start time, taken in order by the free clients
+        long interval = (long) (TimeUnit.SECONDS.toNanos(1) / rate);
+        AtomicLong tickets = new AtomicLong();
+        for (int i = 0; i < clients; i++) {
+            executor.execute(() -> {
+                Session session = new Session();
+                try {
+                    while (true) {
+                        long start;
+                        if (mode == Mode.OPEN) {
+                            start = begin + tickets.getAndIncrement() * interval;
+                            long wait;
+                            while ((wait = start - System.nanoTime()) > 0) {
+                                LockSupport.parkNanos(wait);
+                            }
+                        } else {
+                            start = System.nanoTime();
+                        }
+                        if (start - end >= 0) {
+                            return;
+                        }
+                        execute(session, start, start - measured >= 0);
+                    }
+                } finally {
+                    session.close();
+                }
+            });
+        }
+        executor.shutdown();
+        if (!executor.awaitTermination(warmup + duration + TimeUnit.MILLISECONDS.toNanos(timeout) * 2,
+                TimeUnit.NANOSECONDS)) {
+            LOGGER.warning("Some clients were still waiting for a response at the end of the run.");
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Writes the results of the measured time.
+     */
+    public void report() {
+        double seconds = (double) duration / TimeUnit.SECONDS.toNanos(1);
+        long completed = latency.getCount();
+        long failed = 0;
+        for (LongAdder count : errors.values()) {
+            failed += count.sum();
+        }
+        System.out.printf(Locale.ROOT, "%s mode%s, %d clients, %s codec, %.0f%% sign ups, %.0f s measured%n",
+                mode, mode == Mode.OPEN ? String.format(Locale.ROOT, " at %.1f per second", rate) : "",
+                clients, binary ? "BINARY" : "SERIAL", signUps * 100, seconds);
+        System.out.printf(Locale.ROOT, "Requests: %d, %.1f per second, %d I/O errors%n",
+                completed, completed / seconds, failed);
+        System.out.println(latencyLine("All", latency));
+        for (Map.Entry<Message, Histogram> entry : latencies.entrySet()) {
+            System.out.println(latencyLine(entry.getKey().name(), entry.getValue()));
+        }
+        for (Map.Entry<Message, LongAdder> entry : responses.entrySet()) {
+            if (entry.getValue().sum() > 0) {
+                System.out.println(entry.getKey() + ": " + entry.getValue().sum());
+            }
+        }
+        for (Map.Entry<String, LongAdder> entry : errors.entrySet()) {
+            System.out.println(entry.getKey() + ": " + entry.getValue().sum());
+        }
+    }
+
+    /**
+     * Sends one request and records its result.
+     *
+     * @param session The session of the client.
+     * @param start The moment the request started.
+     * @param measure False during the warm up.
+     */
+    private void execute(Session session, long start, boolean measure) {
+        Message message = logins.isEmpty() || ThreadLocalRandom.current().nextDouble() < signUps
+                ? Message.SIGNUP : Message.SIGNIN;
+        String login = message == Message.SIGNUP
+                ? newLogin() : logins.get(ThreadLocalRandom.current().nextInt(logins.size()));
+        ResponseRequest response;
+        try {
+            response = session.send(request(message, login));
+        } catch (IOException | ClassNotFoundException ex) {
+            session.close();
+            if (measure) {
+                errors.computeIfAbsent(ex.getClass().getSimpleName() + ": " + ex.getMessage(),
+                        error -> new LongAdder()).increment();
+            }
+            return;
+        }
+        if (measure) {
+            long elapsed = System.nanoTime() - start;
+            latency.record(elapsed);
+            latencies.get(message).record(elapsed);
+            if (response.getMessage() != null) {
+                responses.get(response.getMessage()).increment();
+            }
+        }
+    }
+
+    private String newLogin() {
+        return prefix + "-" + nextLogin.incrementAndGet() + "@example.com";
+    }
+
+    private static ResponseRequest request(Message message, String login) {
+        User user = new User();
+        user.setEmail(login);
+        user.setPassword(PASSWORD);
+        if (message == Message.SIGNUP) {
+            user.setName("Load Generator");
+            user.setStreet("Calle Mayor 1");
+            user.setZip("48001");
+            user.setCity("Bilbao");
+        }
+        return new ResponseRequest(user, message);
+    }
+
+    private static String latencyLine(String name, Histogram histogram) {
+        return String.format(Locale.ROOT, "%s latency ms: p50 %.2f, p99 %.2f, p999 %.2f, max %.2f, mean %.2f",
+                name, millis(histogram.getPercentile(50)), millis(histogram.getPercentile(99)),
+                millis(histogram.getPercentile(99.9)), millis(histogram.getMax()), histogram.getMean() / 1e6);
+    }
+
+    private static double millis(long nanos) {
+        return nanos / 1e6;
+    }
+
+    private static String option(Map<String, String> options, String name, String defaultValue) {
+        return options.containsKey(name) ? options.get(name).trim() : defaultValue;
+    }
+
+    /**
+     * The connection of a virtual client. Without keep alive every request
+     * opens a new one, as the desktop application does.
+     */
+    private class Session {
+
+        private Socket socket;
+        private MessageCodec codec;
+
+        /**
+         * Sends a request and waits for its response.
+         *
+         * @param request The request.
+         * @return the response.
+         * @throws IOException If the connection fails.
+         * @throws ClassNotFoundException If the response is not a
+         * ResponseRequest.
+         */
+        ResponseRequest send(ResponseRequest request) throws IOException, ClassNotFoundException {
+            if (codec == null) {
+                connect();
+            }
+            try {
+                try {
+                    codec.write(request);
+                } catch (IOException ex) {
+                    // A client that is not admitted gets its answer before the server reads the request
+                    try {
+                        return codec.read();
+                    } catch (IOException ex1) {
+                        throw ex;
+                    }
+                }
+                return codec.read();
+            } finally {
+                if (!keepAlive) {
+                    close();
+                }
+            }
+        }
+
+        /**
+         * Opens the connection and chooses its codec the way CodecFactory
+         * expects it: the server sends the header of a serialization stream
+         * first, and a binary client answers with BinaryCodec.MAGIC.
+         */
+        private void connect() throws IOException {
+            socket = new Socket();
+            try {
+                socket.connect(new InetSocketAddress(host, port), timeout);
+                socket.setSoTimeout(timeout);
+                socket.setTcpNoDelay(true);
+                InputStream in = socket.getInputStream();
+                OutputStream out = socket.getOutputStream();
+                DataOutputStream data = new DataOutputStream(out);
+                if (binary) {
+                    data.writeInt(BinaryCodec.MAGIC);
+                    // The header of the server is not used by the binary codec
+                    new DataInputStream(in).readInt();
+                    codec = new BinaryCodec(in, out);
+                } else {
+                    // SerialCodec does not write the header, it is sent here as the server does
+                    data.writeShort(ObjectStreamConstants.STREAM_MAGIC);
+                    data.writeShort(ObjectStreamConstants.STREAM_VERSION);
+                    codec = new SerialCodec(in, out);
+                }
+            } catch (IOException ex) {
+                close();
+                throw ex;
+            }
+        }
+
+        /**
+         * Closes the connection, if it is open.
+         */
+        void close() {
+            codec = null;
+            if (socket != null) {
+                try {
+                    socket.close();
+                } catch (IOException ex) {
+                    LOGGER.log(Level.FINE, null, ex);
+                }
+                socket = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,37 @@
+package service;
+
+import java.io.IOException;
+import message.ResponseRequest;
+
+/**
+ * This interface defines how the requests and responses are read from and
+ * written to a client connection.
+ *
+ * @author Irati
+ */
+public interface MessageCodec {
+
+    /**
+     * Reads the next request sent by the client.
+     *
+     * @return the request.
+     * @throws IOException If the connection fails or the client closes it.
+     * @throws ClassNotFoundException If the request cannot be rebuilt.
+     */
+    public ResponseRequest read() throws IOException, ClassNotFoundException;
+
+    /**
+     * Writes a response to the client.
+     *
+     * @param response The response.
+     * @throws IOException If the connection fails.
+     */
+    public void write(ResponseRequest response) throws IOException;
+
+    /**
+     * Closes the streams of the connection.
+     *
+     * @throws IOException If the streams cannot be closed.
+     */
+    public void close() throws IOException;
+}
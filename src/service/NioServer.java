@@ -0,0 +1,525 @@
+package service;
+
+import dataAccess.Deadline;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamConstants;
+import java.io.StreamCorruptedException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import message.Message;
+import message.ResponseRequest;
+import metrics.Histogram;
+import metrics.Metrics;
+
+/**
+ * Non blocking listener for the server. The sockets are read and written by a
+ * few I/O threads, each one with its own selector, so an idle or slow client
+ * does not hold a thread. Only when a whole ResponseRequest has arrived it is
+ * handed to the dispatcher, and the response is written back by the I/O thread
+ * when the socket is ready. Both Java serialization and the binary codec are
+ * understood, as in the blocking listener. A serialized request has no length
+ * before it, so it is read again from the start whenever more bytes arrive;
+ * it is limited to MAX_OBJECT_BYTES, which bounds that work, and only the
+ * classes of a request can be created from it.
+ *
+ * @author Irati
+ */
+public class NioServer {
+
+    private static final Logger LOGGER = Logger.getLogger(NioServer.class.getName());
+    /**
+     * Time from a complete request until a thread takes it.
+     */
+    private static final Histogram QUEUE = Metrics.histogram("request.queue");
+    /**
+     * Time to deserialize a request already received.
+     */
+    private static final Histogram DECODE = Metrics.histogram("request.decode");
+    /**
+     * Biggest request accepted, bigger requests are answered with an error.
+     */
+    private static final int MAX_REQUEST_BYTES = 64 * 1024;
+    /**
+     * Biggest serialized request accepted. A request of a client is far
+     * smaller.
+     */
+    private static final int MAX_OBJECT_BYTES = 8 * 1024;
+    private static final int STREAM_HEADER_BYTES = 4;
+    private final int port;
+    private final Dispatcher dispatcher;
+    private final RateLimiter clients;
+    private final IoLoop[] loops;
+
+    /**
+     * Creates the listener.
+     *
+     * @param port The port to listen on.
+     * @param dispatcher The dispatcher that executes the requests.
+     * @param clients The limit of requests of every client address, or null.
+     * @param ioThreads The number of I/O threads.
+     * @throws IOException If a selector cannot be opened.
+     */
+    public NioServer(int port, Dispatcher dispatcher, RateLimiter clients, int ioThreads) throws IOException {
+        this.port = port;
+        this.dispatcher = dispatcher;
+        this.clients = clients;
+        this.loops = new IoLoop[Math.max(ioThreads, 1)];
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new IoLoop(Selector.open());
+        }
+    }
+
+    /**
+     * Starts the I/O threads and accepts clients until the server is closed.
+     *
+     * @throws IOException If the port cannot be opened.
+     */
+    public void listen() throws IOException {
+        for (int i = 0; i < loops.length; i++) {
+            new Thread(loops[i], "nio-" + (i + 1)).start();
+        }
+        try (ServerSocketChannel server = ServerSocketChannel.open()) {
+            server.bind(new InetSocketAddress(port));
+            LOGGER.info("Waiting for the connection.");
+            int next = 0;
+            while (true) {
+                SocketChannel client = server.accept();
+                long acceptedAt = System.nanoTime();
+                client.configureBlocking(false);
+                client.socket().setTcpNoDelay(true);
+                // The clients are shared between the I/O threads
+                loops[next].register(client, acceptedAt);
+                next = (next + 1) % loops.length;
+            }
+        }
+    }
+
+    /**
+     * Serializes a response the way a client ObjectInputStream expects it
+     * after the stream header, that is sent when the client connects.
+     *
+     * @param response The response.
+     * @return the serialized response without the stream header.
+     * @throws IOException If the response cannot be serialized.
+     */
+    private static ByteBuffer serialize(ResponseRequest response) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        try (ObjectOutputStream write = new ObjectOutputStream(bytes)) {
+            write.writeObject(response);
+        }
+        byte[] array = bytes.toByteArray();
+        return ByteBuffer.wrap(array, STREAM_HEADER_BYTES, array.length - STREAM_HEADER_BYTES);
+    }
+
+    /**
+     * Builds the header that an ObjectOutputStream writes when it is created.
+     *
+     * @return the stream header.
+     */
+    private static ByteBuffer streamHeader() {
+        ByteBuffer header = ByteBuffer.allocate(STREAM_HEADER_BYTES);
+        header.putShort(ObjectStreamConstants.STREAM_MAGIC);
+        header.putShort(ObjectStreamConstants.STREAM_VERSION);
+        header.flip();
+        return header;
+    }
+
+    /**
+     * An I/O thread with its own selector. Every change on its sockets is made
+     * from this thread, other threads send it tasks.
+     */
+    private class IoLoop implements Runnable {
+
+        private final Selector selector;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+        IoLoop(Selector selector) {
+            this.selector = selector;
+        }
+
+        /**
+         * Runs a task in this I/O thread.
+         *
+         * @param task The task.
+         */
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        /**
+         * Starts reading a new client.
+         *
+         * @param client The client's channel.
+         * @param acceptedAt When the client was accepted.
+         */
+        void register(SocketChannel client, long acceptedAt) {
+            execute(() -> {
+                try {
+                    SelectionKey key = client.register(selector, SelectionKey.OP_READ);
+                    Session session = new Session(this, key, acceptedAt);
+                    key.attach(session);
+                    // The client's ObjectInputStream waits for the header
+                    session.send(streamHeader(), false);
+                } catch (IOException ex) {
+                    LOGGER.log(Level.SEVERE, null, ex);
+                    try {
+                        client.close();
+                    } catch (IOException ex1) {
+                        LOGGER.log(Level.SEVERE, null, ex1);
+                    }
+                }
+            });
+        }
+
+        /**
+         * Answers with an error the clients whose request has not been read
+         * before its deadline.
+         */
+        private void expireSessions() {
+            long now = System.nanoTime();
+            for (SelectionKey key : selector.keys()) {
+                Session session = (Session) key.attachment();
+                if (key.isValid() && session != null && session.in != null && now - session.deadline >= 0) {
+                    Deadline.expire(Deadline.Cause.READ);
+                    session.in = null;
+                    session.reply(new ResponseRequest(null, Message.SERVER_ERROR));
+                }
+            }
+        }
+
+        @Override
+        public void run() {
+            long budget = Deadline.getBudget(TimeUnit.MILLISECONDS);
+            long nextCheck = System.nanoTime();
+            while (true) {
+                try {
+                    if (budget > 0) {
+                        // Wakes up to answer the clients that take too long to send their request
+                        selector.select(Math.max(budget / 4, 1));
+                        if (System.nanoTime() - nextCheck >= 0) {
+                            expireSessions();
+                            nextCheck = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Math.max(budget / 4, 1));
+                        }
+                    } else {
+                        selector.select();
+                    }
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) {
+                        try {
+                            task.run();
+                        } catch (RuntimeException ex) {
+                            LOGGER.log(Level.SEVERE, null, ex);
+                        }
+                    }
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        Session session = (Session) key.attachment();
+                        try {
+                            if (key.isValid() && key.isReadable()) {
+                                session.read();
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                session.write();
+                            }
+                        } catch (RuntimeException ex) {
+                            // One client must not stop the thread of the others
+                            LOGGER.log(Level.SEVERE, null, ex);
+                            session.close();
+                        }
+                    }
+                } catch (IOException ex) {
+                    LOGGER.log(Level.SEVERE, null, ex);
+                }
+            }
+        }
+    }
+
+    /**
+     * The state of a client connection: the bytes received until now and the
+     * bytes waiting to be written.
+     */
+    private class Session {
+
+        private final IoLoop loop;
+        private final SelectionKey key;
+        private final SocketChannel channel;
+        private final Queue<ByteBuffer> out = new ArrayDeque<>();
+        private ByteBuffer in = ByteBuffer.allocate(512);
+        private boolean closeAfterWrite;
+        private Boolean binary;
+        private final long acceptedAt;
+        /**
+         * When the request must have been read.
+         */
+        private final long deadline;
+
+        Session(IoLoop loop, SelectionKey key, long acceptedAt) {
+            this.loop = loop;
+            this.key = key;
+            this.channel = (SocketChannel) key.channel();
+            this.acceptedAt = acceptedAt;
+            this.deadline = acceptedAt + Deadline.getBudget(TimeUnit.NANOSECONDS);
+        }
+
+        /**
+         * Reads what the client has sent and handles the request when it is
+         * complete.
+         */
+        void read() {
+            try {
+                int count;
+                do {
+                    if (!in.hasRemaining()) {
+                        if (in.capacity() >= (binary != null && !binary ? MAX_OBJECT_BYTES : MAX_REQUEST_BYTES)) {
+                            LOGGER.warning("Request too big, closing the connection.");
+                            reply(new ResponseRequest(null, Message.SERVER_ERROR));
+                            return;
+                        }
+                        ByteBuffer bigger = ByteBuffer.allocate(Math.min(in.capacity() * 2, MAX_REQUEST_BYTES));
+                        in.flip();
+                        bigger.put(in);
+                        in = bigger;
+                    }
+                    count = channel.read(in);
+                } while (count > 0);
+                if (count < 0) {
+                    // The client has closed the connection before the request
+                    close();
+                    return;
+                }
+            } catch (IOException ex) {
+                LOGGER.log(Level.SEVERE, null, ex);
+                close();
+                return;
+            }
+            decode();
+        }
+
+        /**
+         * Tries to read a request from the bytes received. If they are not
+         * enough it waits for more.
+         */
+        private void decode() {
+            byte[] bytes = in.array();
+            int length = in.position();
+            if (length < 2) {
+                return;
+            }
+            ResponseRequest request;
+            long begin = System.nanoTime();
+            try {
+                if (binary == null) {
+                    // A binary client starts with the magic value of BinaryCodec
+                    binary = bytes[0] == (byte) (BinaryCodec.MAGIC >>> 24) && bytes[1] == (byte) (BinaryCodec.MAGIC >>> 16);
+                    if (!binary) {
+                        checkStreamHeader(bytes);
+                    }
+                }
+                request = binary ? decodeFrame(bytes, length) : decodeObject(bytes, length);
+                if (request != null) {
+                    Worker.checkRequest(request);
+                }
+            } catch (IOException | ClassNotFoundException | RuntimeException ex) {
+                LOGGER.log(Level.SEVERE, null, ex);
+                reply(new ResponseRequest(null, Message.SERVER_ERROR));
+                return;
+            }
+            if (request == null) {
+                // The request is not complete yet
+                return;
+            }
+            long decoded = System.nanoTime();
+            DECODE.record(decoded - begin);
+            // Nothing else is read from this client
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+            in = null;
+            if (clients != null && !clients.tryAcquire(channel.socket().getInetAddress())) {
+                LOGGER.info("Too many requests from " + channel.socket().getInetAddress() + ".");
+                reply(new ResponseRequest(null, Message.SERVER_CAPACITY_ERROR));
+                return;
+            }
+            boolean admitted = dispatcher.dispatch(() -> {
+                QUEUE.recordSince(decoded);
+                Deadline.start(acceptedAt);
+                try {
+                    ResponseRequest response;
+                    if (Deadline.isExpired()) {
+                        // The request has waited too long for a thread
+                        Deadline.expire(Deadline.Cause.QUEUE);
+                        response = new ResponseRequest(null, Message.SERVER_ERROR);
+                        Worker.count(Message.SERVER_ERROR);
+                    } else {
+                        long start = System.nanoTime();
+                        response = Worker.process(request);
+                        dispatcher.record(System.nanoTime() - start);
+                    }
+                    ByteBuffer encoded = encode(response);
+                    loop.execute(() -> send(encoded, true));
+                } catch (IOException ex) {
+                    LOGGER.log(Level.SEVERE, null, ex);
+                    loop.execute(this::close);
+                } catch (RuntimeException ex) {
+                    // A failure of a codec or a handler still gets an answer
+                    LOGGER.log(Level.SEVERE, null, ex);
+                    loop.execute(() -> reply(new ResponseRequest(null, Message.SERVER_ERROR)));
+                } finally {
+                    Deadline.clear();
+                    dispatcher.release();
+                }
+            });
+            if (!admitted) {
+                LOGGER.info("No connections avaliable.");
+                reply(new ResponseRequest(null, Message.SERVER_CAPACITY_ERROR));
+            }
+        }
+
+        /**
+         * Reads a binary frame after the magic value.
+         *
+         * @param bytes The bytes received.
+         * @param length The number of bytes received.
+         * @return the request or null if the frame is not complete.
+         */
+        private ResponseRequest decodeFrame(byte[] bytes, int length) throws IOException {
+            if (length < 8) {
+                return null;
+            }
+            ByteBuffer header = ByteBuffer.wrap(bytes, 0, 8);
+            if (header.getInt() != BinaryCodec.MAGIC) {
+                throw new StreamCorruptedException("Unsupported binary protocol.");
+            }
+            int frame = header.getInt();
+            if (frame <= 0 || frame > BinaryCodec.MAX_FRAME_BYTES) {
+                throw new StreamCorruptedException("Invalid frame length: " + frame);
+            }
+            return length < 8 + frame ? null : BinaryCodec.decode(bytes, 8, frame);
+        }
+
+        /**
+         * Checks the first bytes of a client that does not use the binary
+         * codec, so a client that sends anything else is not waited for.
+         *
+         * @param bytes The bytes received, at least two.
+         */
+        private void checkStreamHeader(byte[] bytes) throws StreamCorruptedException {
+            if (bytes[0] != (byte) (ObjectStreamConstants.STREAM_MAGIC >>> 8)
+                    || bytes[1] != (byte) ObjectStreamConstants.STREAM_MAGIC) {
+                throw new StreamCorruptedException("Unsupported protocol.");
+            }
+        }
+
+        /**
+         * Reads a serialized ResponseRequest.
+         *
+         * @param bytes The bytes received.
+         * @param length The number of bytes received.
+         * @return the request or null if it is not complete.
+         */
+        private ResponseRequest decodeObject(byte[] bytes, int length) throws IOException, ClassNotFoundException {
+            try (FilteredObjectInputStream read = new FilteredObjectInputStream(new ByteArrayInputStream(bytes, 0, length))) {
+                return (ResponseRequest) read.readObject();
+            } catch (EOFException ex) {
+                return null;
+            }
+        }
+
+        /**
+         * Encodes a response with the codec chosen by the client.
+         *
+         * @param response The response.
+         * @return the bytes to send.
+         */
+        private ByteBuffer encode(ResponseRequest response) throws IOException {
+            return binary != null && binary ? ByteBuffer.wrap(BinaryCodec.encode(response)) : serialize(response);
+        }
+
+        /**
+         * Sends a response built by the I/O thread and closes the connection.
+         *
+         * @param response The response.
+         */
+        private void reply(ResponseRequest response) {
+            Worker.count(response.getMessage());
+            if (!key.isValid()) {
+                return;
+            }
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+            try {
+                send(encode(response), true);
+            } catch (IOException ex) {
+                LOGGER.log(Level.SEVERE, null, ex);
+                close();
+            }
+        }
+
+        /**
+         * Queues bytes to be written to the client.
+         *
+         * @param bytes The bytes.
+         * @param close If the connection must be closed once they are written.
+         */
+        void send(ByteBuffer bytes, boolean close) {
+            if (!key.isValid()) {
+                return;
+            }
+            out.add(bytes);
+            closeAfterWrite |= close;
+            write();
+        }
+
+        /**
+         * Writes as much as the socket accepts and waits to be writable again
+         * for the rest.
+         */
+        void write() {
+            try {
+                while (!out.isEmpty()) {
+                    ByteBuffer bytes = out.peek();
+                    channel.write(bytes);
+                    if (bytes.hasRemaining()) {
+                        key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                        return;
+                    }
+                    out.poll();
+                }
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+                if (closeAfterWrite) {
+                    close();
+                }
+            } catch (IOException ex) {
+                LOGGER.log(Level.SEVERE, null, ex);
+                close();
+            }
+        }
+
+        /**
+         * Closes the connection.
+         */
+        void close() {
+            key.cancel();
+            try {
+                channel.close();
+            } catch (IOException ex) {
+                LOGGER.log(Level.SEVERE, null, ex);
+            }
+        }
+    }
+}
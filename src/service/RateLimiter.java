@@ -0,0 +1,213 @@
+package service;
+
+import java.util.Map;
+import java.util.ResourceBundle;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import java.util.logging.Logger;
+import metrics.Metrics;
+
+/**
+ * Token buckets that limit the requests of every client address or login. A
+ * key may send RATE_LIMIT_&lt;name&gt; requests per second on average and
+ * RATE_BURST_&lt;name&gt; requests at once. Every bucket is one number, the
+ * time when it will be full again (the generic cell rate algorithm), changed
+ * with compare and set, so a request takes no lock. At most RATE_MAX_ENTRIES
+ * keys have their own bucket, the rest share a few overflow buckets, and the
+ * buckets not used for RATE_IDLE_TIMEOUT milliseconds are removed.
+ *
+ * @author Irati
+ */
+public class RateLimiter {
+
+    private static final Logger LOGGER = Logger.getLogger(RateLimiter.class.getName());
+    private static final int OVERFLOW_BUCKETS = 64;
+    private static ScheduledExecutorService sweeper;
+    private final String name;
+    /**
+     * Nanoseconds between two requests at the allowed rate.
+     */
+    private final long interval;
+    /**
+     * Nanoseconds a bucket may be ahead of the clock, the burst.
+     */
+    private final long tolerance;
+    private final int maxEntries;
+    private final Map<Object, AtomicLong> buckets = new ConcurrentHashMap<>();
+    private final AtomicLongArray overflow = new AtomicLongArray(OVERFLOW_BUCKETS);
+    private final LongAdder rejected = new LongAdder();
+    /**
+     * The clock in nanoseconds, System.nanoTime outside the tests.
+     */
+    private final LongSupplier clock;
+
+    /**
+     * Creates a rate limiter.
+     *
+     * @param name The name used in the log.
+     * @param rate The requests per second of a key.
+     * @param burst The requests a key can send at once.
+     * @param maxEntries The keys with their own bucket.
+     * @param idleTimeout The milliseconds an unused bucket is kept.
+     */
+    public RateLimiter(String name, double rate, int burst, int maxEntries, long idleTimeout) {
+        this(name, rate, burst, maxEntries, idleTimeout, System::nanoTime);
+    }
+
+    /**
+     * Creates a rate limiter with its own clock.
+     *
+     * @param name The name used in the log.
+     * @param rate The requests per second of a key.
+     * @param burst The requests a key can send at once.
+     * @param maxEntries The keys with their own bucket.
+     * @param idleTimeout The milliseconds an unused bucket is kept.
+     * @param clock The clock in nanoseconds.
+     */
+    RateLimiter(String name, double rate, int burst, int maxEntries, long idleTimeout, LongSupplier clock) {
+        this.name = name;
+        this.clock = clock;
+        this.interval = Math.max((long) (TimeUnit.SECONDS.toNanos(1) / rate), 1);
+        this.tolerance = interval * Math.max(burst, 1);
+        this.maxEntries = maxEntries;
+        // Full buckets, System.nanoTime may be negative
+        long full = clock.getAsLong() - tolerance;
+        for (int i = 0; i < OVERFLOW_BUCKETS; i++) {
+            overflow.set(i, full);
+        }
+        long nanos = TimeUnit.MILLISECONDS.toNanos(idleTimeout);
+        sweeper().scheduleWithFixedDelay(() -> sweep(nanos), idleTimeout, idleTimeout, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Creates the rate limiter of the configuration file, for the keys
+     * RATE_LIMIT_&lt;name&gt; and RATE_BURST_&lt;name&gt;.
+     *
+     * @param configFile The configuration file.
+     * @param name The name of the limit, IP or LOGIN.
+     * @return the limiter or null if the limit is not configured or is zero.
+     */
+    public static RateLimiter of(ResourceBundle configFile, String name) {
+        String key = "RATE_LIMIT_" + name;
+        double rate = configFile.containsKey(key) ? Double.parseDouble(configFile.getString(key).trim()) : 0;
+        if (rate <= 0) {
+            return null;
+        }
+        int burst = configFile.containsKey("RATE_BURST_" + name)
+                ? Integer.parseInt(configFile.getString("RATE_BURST_" + name).trim()) : 10;
+        int maxEntries = configFile.containsKey("RATE_MAX_ENTRIES")
+                ? Integer.parseInt(configFile.getString("RATE_MAX_ENTRIES").trim()) : 100000;
+        long idleTimeout = configFile.containsKey("RATE_IDLE_TIMEOUT")
+                ? Long.parseLong(configFile.getString("RATE_IDLE_TIMEOUT").trim()) : 60000;
+        RateLimiter limiter = new RateLimiter(name, rate, burst, maxEntries, idleTimeout);
+        Metrics.gauge("ratelimit." + name.toLowerCase() + ".rejected", limiter::getRejectedCount);
+        Metrics.gauge("ratelimit." + name.toLowerCase() + ".keys", limiter::size);
+        return limiter;
+    }
+
+    /**
+     * Takes a token of the bucket of a key.
+     *
+     * @param key The client address or login.
+     * @return false if the key has sent too many requests.
+     */
+    public boolean tryAcquire(Object key) {
+        if (key == null) {
+            return true;
+        }
+        long now = clock.getAsLong();
+        AtomicLong bucket = buckets.get(key);
+        if (bucket == null) {
+            if (buckets.size() < maxEntries) {
+                bucket = buckets.computeIfAbsent(key, k -> new AtomicLong(now));
+            } else {
+                // Too many keys, this one shares a bucket with others
+                return acquire(Math.floorMod(key.hashCode(), OVERFLOW_BUCKETS), now);
+            }
+        }
+        while (true) {
+            long full = bucket.get();
+            long next = later(full, now) + interval;
+            if (next - now > tolerance) {
+                rejected.increment();
+                return false;
+            }
+            if (bucket.compareAndSet(full, next)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Gets the number of keys with their own bucket.
+     *
+     * @return the number of buckets.
+     */
+    public int size() {
+        return buckets.size();
+    }
+
+    /**
+     * Gets the number of requests rejected.
+     *
+     * @return the rejected requests.
+     */
+    public long getRejectedCount() {
+        return rejected.sum();
+    }
+
+    private boolean acquire(int position, long now) {
+        while (true) {
+            long full = overflow.get(position);
+            long next = later(full, now) + interval;
+            if (next - now > tolerance) {
+                rejected.increment();
+                return false;
+            }
+            if (overflow.compareAndSet(position, full, next)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Gets the later of two times of System.nanoTime, that are only
+     * comparable by their difference.
+     */
+    private static long later(long time, long now) {
+        return time - now > 0 ? time : now;
+    }
+
+    /**
+     * Removes the buckets that have been full for longer than the idle
+     * timeout. A key that comes back gets a new full bucket, the same it had.
+     *
+     * @param idleTimeout The idle timeout in nanoseconds.
+     */
+    private void sweep(long idleTimeout) {
+        long now = clock.getAsLong();
+        int before = buckets.size();
+        buckets.values().removeIf(bucket -> now - bucket.get() > idleTimeout);
+        int removed = before - buckets.size();
+        if (removed > 0) {
+            LOGGER.fine("Removed " + removed + " idle " + name + " rate buckets.");
+        }
+    }
+
+    private static synchronized ScheduledExecutorService sweeper() {
+        if (sweeper == null) {
+            sweeper = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "rate-sweeper");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return sweeper;
+    }
+}
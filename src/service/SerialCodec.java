@@ -0,0 +1,65 @@
+package service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import message.ResponseRequest;
+
+/**
+ * Codec that uses the Java serialization of ResponseRequest. It is the
+ * protocol of the existing clients.
+ *
+ * @author Irati
+ */
+public class SerialCodec implements MessageCodec {
+
+    /**
+     * Responses written before the stream forgets the objects already sent.
+     */
+    private static final int RESET_INTERVAL = 64;
+    private final ObjectOutputStream write;
+    private final ObjectInputStream read;
+    private int written = 0;
+
+    /**
+     * Creates the codec. The stream header of the output has already been sent
+     * to the client when the connection was opened, so it is not sent again.
+     *
+     * @param in The input stream of the client.
+     * @param out The output stream of the client.
+     * @throws IOException If the header of the client cannot be read.
+     */
+    public SerialCodec(InputStream in, OutputStream out) throws IOException {
+        write = new ObjectOutputStream(out) {
+            @Override
+            protected void writeStreamHeader() {
+                // Already sent by CodecFactory
+            }
+        };
+        read = new FilteredObjectInputStream(in);
+    }
+
+    @Override
+    public ResponseRequest read() throws IOException, ClassNotFoundException {
+        return (ResponseRequest) read.readObject();
+    }
+
+    @Override
+    public void write(ResponseRequest response) throws IOException {
+        write.writeUnshared(response);
+        write.flush();
+        written++;
+        if (written % RESET_INTERVAL == 0) {
+            // Avoids keeping every response of a long session in memory
+            write.reset();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        write.close();
+        read.close();
+    }
+}
@@ -1,22 +1,30 @@
 package service;
 
-import dataAccess.SignableFactory;
+import dataAccess.BulkImporter;
+import dataAccess.LoginIndex;
+import dataAccess.PoolFactory;
 import exceptions.ServerErrorException;
-import interfaces.Signable;
 import java.io.IOException;
-import java.io.ObjectOutputStream;
+import java.net.InetAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.file.Paths;
 import java.util.ResourceBundle;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import message.Message;
 import message.ResponseRequest;
+import metrics.Metrics;
 
 /**
  * The Server class represents a server application that connects with the
- * client side. It listens for client connections and initialises worker threads
- * to manage the request. When the server reaches its maximum capacity, it sends
+ * client side. It listens for client connections and initialises workers to
+ * manage the request. When the server reaches its maximum capacity, it sends
  * a server capacity error response to clients.
  *
  * @author Irati
@@ -24,7 +32,23 @@ import message.ResponseRequest;
 public class Server {
 
     private static ServerSocket server = null;
-    private static int connections = 0;
+    private static Dispatcher dispatcher;
+    private static int idleTimeout = 0;
+    private static RateLimiter clients;
+    /**
+     * Milliseconds a rejected client has to be read before it is just
+     * disconnected.
+     */
+    private static final int REJECT_TIMEOUT = 500;
+    /**
+     * Thread that answers the clients rejected for lack of capacity.
+     */
+    private static final ExecutorService rejecter = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<Runnable>(100), r -> {
+                Thread thread = new Thread(r, "rejecter");
+                thread.setDaemon(true);
+                return thread;
+            });
     private static final Logger logger = Logger.getLogger(Worker.class.getName());
 
     /**
@@ -34,14 +58,44 @@ public class Server {
     }
 
     /**
-     * Main method for the Server.
+     * Main method for the Server. With the arguments --import and a CSV file
+     * it imports the users of the file instead of listening for clients.
      *
      * @param args the command line arguments
      */
     public static void main(String[] args) {
+        // Writes the log in the background if it is configured
+        AsyncLogHandler.install(ResourceBundle.getBundle("config.config"));
+        if (args.length == 2 && args[0].equals("--import")) {
+            importUsers(args[1]);
+            return;
+        }
         try {
+            ResourceBundle configFile = ResourceBundle.getBundle("config.config");
+            int port = Integer.parseInt(configFile.getString("PORT"));
+            // Creates the dispatcher that executes the workers.
+            dispatcher = new Dispatcher(configFile);
+            // Limits the requests of every client address, if it is configured
+            clients = RateLimiter.of(configFile, "IP");
+            // Loads the index of the existing logins in the background.
+            LoginIndex.getIndex().load();
+            // Exports the metrics of the server through JMX
+            Metrics.registerMBean();
+            // Keeps the sessions open for more requests if it is configured
+            if (configFile.containsKey("KEEP_ALIVE") && Boolean.parseBoolean(configFile.getString("KEEP_ALIVE").trim())) {
+                idleTimeout = Integer.parseInt(configFile.getString("IDLE_TIMEOUT").trim());
+            }
+
+            if (configFile.containsKey("LISTENER") && configFile.getString("LISTENER").trim().equals("NIO")) {
+                // Non blocking listener, the sockets are served by a few I/O threads
+                NioServer nioServer = new NioServer(port, dispatcher, clients,
+                        Integer.parseInt(configFile.getString("NIO_THREADS").trim()));
+                waitClose();
+                nioServer.listen();
+                return;
+            }
             // Get the port form a property file for the socket.
-            server = new ServerSocket(Integer.parseInt(ResourceBundle.getBundle("config.config").getString("PORT")));
+            server = new ServerSocket(port);
             logger.info("Waiting for the connection.");
 
             // Calls the method waitClose that creates a thread that is in charge of clossing the server.
@@ -57,53 +111,132 @@ public class Server {
         }
     }
 
+    /**
+     * Imports the users of a CSV file and closes the connections of the pool.
+     *
+     * @param file The path of the file.
+     */
+    private static void importUsers(String file) {
+        try {
+            new BulkImporter().importFile(Paths.get(file));
+        } catch (IOException | ServerErrorException ex) {
+            Logger.getLogger(Server.class.getName()).log(Level.SEVERE, null, ex);
+        } finally {
+            PoolFactory.closeAllPools();
+        }
+    }
+
     /**
      * Initialises a worker that manage a client connection. If the server can
-     * handle the petition, a worker thread is created to serve the client. If
-     * the server is at its maximum capacity, it sends a server capacity error
-     * response to the client.
+     * handle the petition, the worker is handed to the dispatcher, that runs it
+     * or keeps it waiting in its queue. If the server is at its maximum
+     * capacity or the client address has sent too many requests, it sends a
+     * server capacity error response to the client.
      *
      * @param client The client's socket connection.
      */
     private static void initializeWorker(Socket client) {
+        if (!allowClient(client.getInetAddress())) {
+            logger.info("Too many requests from " + client.getInetAddress() + ".");
+            sendCapacityError(client);
+            return;
+        }
         logger.info("Initialising the worker thread.");
-        // Gets from a property file the maximun connections
-        if (connections < Integer.parseInt(ResourceBundle.getBundle("config.config").getString("MAX_CONNECTIONS"))) {
+        // The dispatcher admits the worker if there is a free slot or place in the queue
+        if (dispatcher.dispatch(new Worker(client, idleTimeout))) {
             logger.info("There is a connection avaliable.");
-            // Initialize the worker
-            Worker worker = new Worker(client);
-            worker.start();
-            // Increments the connections' counter
-            connections++;
-
         } else {
             logger.info("No connections avaliable.");
-            // If the maximun capacity has been reached. Seeds a exception
+            sendCapacityError(client);
+        }
+    }
+
+    /**
+     * Takes a request of a client address from its rate limit. The first
+     * request of a connection is taken when it is accepted and every other
+     * request of a keep alive session by its worker.
+     *
+     * @param address The address of the client.
+     * @return true if the request can be served.
+     */
+    static boolean allowClient(InetAddress address) {
+        return clients == null || clients.tryAcquire(address);
+    }
+
+    /**
+     * Sends a server capacity error response to a client that could not be
+     * admitted and closes its socket. The codec of the client is negotiated
+     * in a separate thread so the accept loop never waits for a client.
+     *
+     * @param client The client's socket connection.
+     */
+    private static void sendCapacityError(Socket client) {
+        Worker.count(Message.SERVER_CAPACITY_ERROR);
+        try {
+            rejecter.execute(() -> writeCapacityError(client));
+        } catch (RejectedExecutionException ex) {
+            // Too many clients to answer, they are just disconnected
+            try {
+                client.close();
+            } catch (IOException ex1) {
+                Logger.getLogger(Server.class.getName()).log(Level.SEVERE, null, ex1);
+            }
+        }
+    }
+
+    /**
+     * Writes the server capacity error response and closes the socket. The
+     * rejected client has REJECT_TIMEOUT milliseconds to send its first bytes
+     * and its header, so a silent client does not hold the rejecter thread.
+     *
+     * @param client The client's socket connection.
+     */
+    private static void writeCapacityError(Socket client) {
+        try {
+            client.setSoTimeout(REJECT_TIMEOUT);
+            // Gets the codec to write.
+            MessageCodec write = CodecFactory.getCodec(client, REJECT_TIMEOUT);
+            // Sends the response to the client.
+            write.write(new ResponseRequest(null, Message.SERVER_CAPACITY_ERROR));
+            write.close();
+            logger.info("Server capacity error sent to " + client.getInetAddress() + ".");
+        } catch (IOException ex) {
+            logger.log(Level.FINE, null, ex);
+        } finally {
             try {
-                throw new ServerErrorException();
-            } catch (ServerErrorException ex) {
-                try {
-                    // Gets an ObjectOutputStream to write.
-                    ObjectOutputStream write = new ObjectOutputStream(client.getOutputStream());
-                    // Creates a responde for the client.
-                    ResponseRequest response = new ResponseRequest(null, Message.SERVER_CAPACITY_ERROR);
-                    // Sends the response to the client.
-                    write.writeObject(response);
-                    Logger.getLogger(Server.class.getName()).log(Level.SEVERE, null, ex);
-                } catch (IOException ex1) {
-                    Logger.getLogger(Server.class.getName()).log(Level.SEVERE, null, ex1);
-                }
+                client.close();
+            } catch (IOException ex) {
+                Logger.getLogger(Server.class.getName()).log(Level.SEVERE, null, ex);
             }
         }
     }
 
+    /**
+     * Records how long a worker took to process a request, for the adaptive
+     * limit of the dispatcher.
+     *
+     * @param nanos The nanoseconds of the request.
+     */
+    public static void requestDone(long nanos) {
+        dispatcher.record(nanos);
+    }
+
     /**
      * Decreases the count of active connections.
      */
-    public synchronized static void closeWorker() {
+    public static void closeWorker() {
         logger.info("Closing the connection.");
         // Decrease the connections' counter
-        connections--;
+        dispatcher.release();
+    }
+
+    /**
+     * Stops the dispatcher so no more workers are executed.
+     */
+    public static void stopWorkers() {
+        if (dispatcher != null) {
+            dispatcher.shutdown();
+        }
     }
 
     /**
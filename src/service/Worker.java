@@ -1,56 +1,252 @@
 package service;
 
+import dataAccess.Deadline;
 import dataAccess.SignableFactory;
 import exceptions.EmailExistsException;
 import exceptions.LoginCredentialException;
 import exceptions.ServerErrorException;
-import interfaces.Signable;
+import java.io.EOFException;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.io.StreamCorruptedException;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.ResourceBundle;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import message.Message;
 import message.ResponseRequest;
+import metrics.Histogram;
+import metrics.Metrics;
 
 /**
- * This class represents a worker thread responsible managing the petitions of
+ * This class represents a worker responsible managing the petitions of
  * the client such as sign-up or sign-in and sending back appropriate responses.
  *
  * @author Irati
  */
-public class Worker extends Thread {
+public class Worker implements Runnable {
 
     private Socket client;
-    private Signable signable;
-    private ObjectOutputStream write;
-    private ObjectInputStream read;
+    private MessageCodec codec;
+    private final int idleTimeout;
+    /**
+     * When the client was accepted, the start of the deadline of its first
+     * request.
+     */
+    private final long acceptedAt = System.nanoTime();
     private static final Logger LOGGER = Logger.getLogger(" package dataAcess");
+    /**
+     * Limits the requests of every login, null if it is not configured.
+     */
+    private static final RateLimiter LOGINS = RateLimiter.of(ResourceBundle.getBundle("config.config"), "LOGIN");
+    /**
+     * Time from the accept of the client until a thread takes it.
+     */
+    private static final Histogram QUEUE = Metrics.histogram("request.queue");
+    /**
+     * Time to read and deserialize a request, with the wait for its bytes.
+     */
+    private static final Histogram READ = Metrics.histogram("request.read");
+    /**
+     * Time to process a request, by the message of the request.
+     */
+    private static final Map<Message, Histogram> LATENCY = new EnumMap<>(Message.class);
+    /**
+     * Number of responses, by their message.
+     */
+    private static final Map<Message, LongAdder> OUTCOMES = new EnumMap<>(Message.class);
+
+    static {
+        for (Message message : Message.values()) {
+            if (message == Message.SIGNUP || message == Message.SIGNIN) {
+                LATENCY.put(message, Metrics.histogram("request." + message.name().toLowerCase()));
+            } else {
+                OUTCOMES.put(message, Metrics.counter("response." + message.name().toLowerCase()));
+            }
+        }
+    }
 
     /**
-     * Initialises a new worker thread with the client socket and Signable
+     * Initialises a new worker with the client socket and Signable
      * implementation.
      *
      * @param client The client's socket connection.
      */
     public Worker(Socket client) {
+        this(client, 0);
+    }
+
+    /**
+     * Initialises a new worker that keeps the session open. The worker
+     * serves requests on the same connection until the client closes it or
+     * it is idle for longer than the timeout.
+     *
+     * @param client The client's socket connection.
+     * @param idleTimeout The milliseconds to wait for the next request, 0 to
+     * serve only one request.
+     */
+    public Worker(Socket client, int idleTimeout) {
         this.client = client;
+        this.idleTimeout = idleTimeout;
     }
 
     /**
-     * Runs the worker thread to process client requests and send responses.
+     * Runs the worker to process client requests and send responses. The
+     * first request must be read and answered before its deadline, counted
+     * from the moment the client was accepted; the next requests of a
+     * session get their deadline when they are read.
      */
     @Override
     public void run() {
-        ResponseRequest responseRequest = new ResponseRequest();
+        ResponseRequest responseRequest;
+        int served = 0;
+        Deadline.start(acceptedAt);
+        QUEUE.recordSince(acceptedAt);
         try {
-            // Instance of ObjectOutputStream and ObjectImputStream
-            write = new ObjectOutputStream(client.getOutputStream());
-            read = new ObjectInputStream(client.getInputStream());
-            // Reads the responseRequest sent by the client
-            responseRequest = (ResponseRequest) read.readObject();
+            // The client has waited too long for a thread
+            boolean late = Deadline.isExpired();
+            if (late) {
+                Deadline.expire(Deadline.Cause.QUEUE);
+            } else {
+                client.setSoTimeout(Deadline.socketTimeout(0));
+            }
+            // Chooses between Java serialization and the binary codec
+            codec = CodecFactory.getCodec(client);
+            if (late) {
+                count(Message.SERVER_ERROR);
+                codec.write(new ResponseRequest(null, Message.SERVER_ERROR));
+                return;
+            }
+            do {
+                client.setSoTimeout(served == 0 ? Deadline.socketTimeout(idleTimeout) : idleTimeout);
+                // Reads the responseRequest sent by the client
+                try {
+                    long start = System.nanoTime();
+                    responseRequest = checkRequest(codec.read());
+                    READ.recordSince(start);
+                } catch (EOFException | SocketTimeoutException ex) {
+                    if (served == 0) {
+                        if (ex instanceof SocketTimeoutException && Deadline.isExpired()) {
+                            Deadline.expire(Deadline.Cause.READ);
+                        }
+                        throw ex;
+                    }
+                    // The client has closed the session or it has been idle for too long
+                    break;
+                }
+                if (served > 0) {
+                    Deadline.start(System.nanoTime());
+                }
+                if (served > 0 && !Server.allowClient(client.getInetAddress())) {
+                    // Every request of a session counts for the limit of its address
+                    LOGGER.info("Too many requests from " + client.getInetAddress() + ".");
+                    count(Message.SERVER_CAPACITY_ERROR);
+                    responseRequest = new ResponseRequest(null, Message.SERVER_CAPACITY_ERROR);
+                } else {
+                    // Makes the SignUp or the SignIn
+                    long start = System.nanoTime();
+                    responseRequest = process(responseRequest);
+                    Server.requestDone(System.nanoTime() - start);
+                }
+                // Writes the response
+                codec.write(responseRequest);
+                served++;
+            } while (idleTimeout > 0);
+
+        } catch (ClassNotFoundException | IOException | RuntimeException ex) {
+            // A failure of a codec or a handler still gets an answer
+            Logger.getLogger(Worker.class.getName()).log(Level.SEVERE, null, ex);
+            try {
+                // Writes the error response
+                if (codec != null) {
+                    count(Message.SERVER_ERROR);
+                    codec.write(new ResponseRequest(null, Message.SERVER_ERROR));
+                }
+            } catch (IOException ex1) {
+                Logger.getLogger(Worker.class.getName()).log(Level.SEVERE, null, ex1);
+            }
+        } finally {
+            try {
+                // Close the streams and the socket
+                if (codec != null) {
+                    codec.close();
+                }
+                client.close();
+            } catch (IOException ex) {
+                Logger.getLogger(Worker.class.getName()).log(Level.SEVERE, null, ex);
+            } finally {
+                // The thread may serve other clients
+                Deadline.clear();
+                // Calls the method to decrease the connections count
+                Server.closeWorker();
+            }
+
+        }
+
+    }
+
+    /**
+     * Makes the SignUp or the SignIn of a request already read from the client
+     * and builds the response that must be sent back. A login that has sent
+     * too many requests gets a server capacity error. The time of the request
+     * and its response are added to the metrics.
+     *
+     * @param responseRequest The request sent by the client.
+     * @return the response for the client.
+     */
+    public static ResponseRequest process(ResponseRequest responseRequest) {
+        long start = System.nanoTime();
+        Message request = responseRequest.getMessage();
+        ResponseRequest response = serve(responseRequest);
+        Histogram latency = LATENCY.get(request);
+        if (latency != null) {
+            latency.recordSince(start);
+        }
+        count(response.getMessage());
+        return response;
+    }
+
+    /**
+     * Checks that a request read from a client is a sign up or a sign in with
+     * a user and its email, before it is processed.
+     *
+     * @param responseRequest The request.
+     * @return the same request.
+     * @throws IOException If it is not a valid request.
+     */
+    static ResponseRequest checkRequest(ResponseRequest responseRequest) throws IOException {
+        if (responseRequest == null || responseRequest.getUser() == null || responseRequest.getUser().getEmail() == null
+                || (responseRequest.getMessage() != Message.SIGNUP && responseRequest.getMessage() != Message.SIGNIN)) {
+            throw new StreamCorruptedException("Bad frame");
+        }
+        return responseRequest;
+    }
+
+    /**
+     * Counts a response sent to a client in the response metrics. The
+     * responses of process are counted by it, the ones built by the
+     * listeners, such as the capacity rejections, are counted here.
+     *
+     * @param message The message of the response.
+     */
+    static void count(Message message) {
+        LongAdder outcome = OUTCOMES.get(message);
+        if (outcome != null) {
+            outcome.increment();
+        }
+    }
 
+    private static ResponseRequest serve(ResponseRequest responseRequest) {
+        try {
+            // A login that sends too many requests is not checked in the DB
+            if (LOGINS != null && responseRequest.getUser() != null
+                    && !LOGINS.tryAcquire(responseRequest.getUser().getEmail())) {
+                LOGGER.info("Too many requests for the login " + responseRequest.getUser().getEmail() + ".");
+                return new ResponseRequest(null, Message.SERVER_CAPACITY_ERROR);
+            }
             // Takes the recieved message to make a SignUp or a SignIn
             if (responseRequest.getMessage() == Message.SIGNUP) {
                 responseRequest.setUser(SignableFactory.getSignable().signUp(responseRequest.getUser()));
@@ -69,28 +265,11 @@ public class Worker extends Thread {
             // If there is a EmailExistsException catches it and creates a ResponseRequest
             LOGGER.getLogger(Worker.class.getName()).log(Level.SEVERE, null, ex);
             responseRequest = new ResponseRequest(null, Message.EMAIL_EXITS_ERROR);
-        } catch (ClassNotFoundException | IOException ex) {
-            Logger.getLogger(Worker.class.getName()).log(Level.SEVERE, null, ex);
-            responseRequest = new ResponseRequest(null, Message.SERVER_ERROR);
         } catch (LoginCredentialException ex) {
             // If there is a LoginCredentialException catches it and creates a ResponseRequest
             LOGGER.getLogger(Worker.class.getName()).log(Level.SEVERE, null, ex);
             responseRequest = new ResponseRequest(null, Message.CREDENTIAL_ERROR);
-        } finally {
-            try {
-                // Writes the response
-                write.writeObject(responseRequest);
-                // Close ObjectOutputStream, ObjectImputStream and the socket
-                read.close();
-                write.close();
-                client.close();
-                // Calls the method to decrease the connections count
-                Server.closeWorker();
-            } catch (IOException ex) {
-                Logger.getLogger(Worker.class.getName()).log(Level.SEVERE, null, ex);
-            }
-
         }
-
+        return responseRequest;
     }
 }
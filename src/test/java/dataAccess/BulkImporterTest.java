@@ -0,0 +1,68 @@
+package dataAccess;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import models.Privilege;
+import models.User;
+import org.junit.Test;
+
+/**
+ * Tests of the lines of the CSV files of the bulk import.
+ *
+ * @author Olivia
+ */
+public class BulkImporterTest {
+
+    @Test
+    public void parsesEveryColumn() {
+        User user = BulkImporter.parse("ana@example.com,secret,Ana,Calle 1,48001,Bilbao,ADMIN");
+
+        assertEquals("ana@example.com", user.getEmail());
+        assertEquals("secret", user.getPassword());
+        assertEquals("Ana", user.getName());
+        assertEquals("Calle 1", user.getStreet());
+        assertEquals("48001", user.getZip());
+        assertEquals("Bilbao", user.getCity());
+        assertEquals(Privilege.ADMIN, user.getPrivilege());
+    }
+
+    @Test
+    public void missingColumnsAreNullAndPrivilegeIsUser() {
+        User user = BulkImporter.parse("ana@example.com,secret,,");
+
+        assertEquals("ana@example.com", user.getEmail());
+        assertNull(user.getName());
+        assertNull(user.getStreet());
+        assertNull(user.getCity());
+        assertEquals(Privilege.USER, user.getPrivilege());
+        assertEquals(Privilege.ADMIN, BulkImporter.parse("ana@example.com,secret,,,,,admin").getPrivilege());
+    }
+
+    @Test
+    public void unquotedFieldsAreTrimmed() {
+        User user = BulkImporter.parse(" ana@example.com , secret , Ana ");
+
+        assertEquals("ana@example.com", user.getEmail());
+        assertEquals("secret", user.getPassword());
+        assertEquals("Ana", user.getName());
+    }
+
+    @Test
+    public void quotedFieldsKeepCommasQuotesAndSpaces() {
+        User user = BulkImporter.parse("ana@example.com,\" se,cret \",\"Ana \"\"La\"\" Ruiz\",  \"Calle, 1\"");
+
+        assertEquals(" se,cret ", user.getPassword());
+        assertEquals("Ana \"La\" Ruiz", user.getName());
+        assertEquals("Calle, 1", user.getStreet());
+    }
+
+    @Test
+    public void badRowsAreRejected() {
+        assertNull(BulkImporter.parse(""));
+        assertNull(BulkImporter.parse("ana@example.com"));
+        assertNull(BulkImporter.parse("ana@example.com,"));
+        assertNull(BulkImporter.parse(",secret,Ana"));
+        assertNull(BulkImporter.parse("ana@example.com,secret,,,,,ROOT"));
+    }
+}
@@ -0,0 +1,62 @@
+package dataAccess;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Tests of the Bloom filter of the login index.
+ *
+ * @author Olivia
+ */
+public class LoginIndexTest {
+
+    private static final int LOGINS = 10000;
+
+    @Test
+    public void addedLoginsAreAlwaysFound() {
+        LoginIndex.Filter filter = new LoginIndex.Filter(LOGINS, 0.01);
+        for (int i = 0; i < LOGINS; i++) {
+            filter.add("user" + i + "@example.com");
+        }
+        for (int i = 0; i < LOGINS; i++) {
+            assertTrue(filter.mightContain("user" + i + "@example.com"));
+        }
+    }
+
+    @Test
+    public void falsePositivesStayNearTheConfiguredRate() {
+        LoginIndex.Filter filter = new LoginIndex.Filter(LOGINS, 0.01);
+        for (int i = 0; i < LOGINS; i++) {
+            filter.add("user" + i + "@example.com");
+        }
+        int falsePositives = 0;
+        for (int i = 0; i < LOGINS; i++) {
+            if (filter.mightContain("other" + i + "@example.com")) {
+                falsePositives++;
+            }
+        }
+        // 1% expected, the hashes are fixed so the count always is the same
+        assertTrue("False positives: " + falsePositives, falsePositives < LOGINS * 2 / 100);
+    }
+
+    @Test
+    public void emptyFilterContainsNothing() {
+        LoginIndex.Filter filter = new LoginIndex.Filter(LOGINS, 0.01);
+        assertFalse(filter.mightContain("user@example.com"));
+        assertFalse(filter.mightContain(""));
+    }
+
+    @Test
+    public void overfilledFilterStillFindsItsLogins() {
+        // Ten times more logins than expected
+        LoginIndex.Filter filter = new LoginIndex.Filter(LOGINS / 10, 0.01);
+        for (int i = 0; i < LOGINS; i++) {
+            filter.add("user" + i + "@example.com");
+        }
+        for (int i = 0; i < LOGINS; i++) {
+            assertTrue(filter.mightContain("user" + i + "@example.com"));
+        }
+    }
+}
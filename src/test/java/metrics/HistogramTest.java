@@ -0,0 +1,80 @@
+package metrics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Tests of the buckets and percentiles of the histogram.
+ *
+ * @author Leire
+ */
+public class HistogramTest {
+
+    @Test
+    public void emptyHistogramIsZero() {
+        Histogram histogram = new Histogram("empty");
+
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getPercentile(50));
+        assertEquals(0, histogram.getMax());
+        assertEquals(0, histogram.getMean(), 0);
+    }
+
+    @Test
+    public void smallValuesAreExact() {
+        Histogram histogram = new Histogram("small");
+        for (int i = 1; i <= 60; i++) {
+            histogram.record(i);
+        }
+
+        assertEquals(30, histogram.getPercentile(50));
+        assertEquals(60, histogram.getPercentile(100));
+        assertEquals(1, histogram.getPercentile(0));
+        assertEquals(30.5, histogram.getMean(), 1e-9);
+    }
+
+    @Test
+    public void percentilesAreWithinThreePercent() {
+        Histogram histogram = new Histogram("micros");
+        for (long i = 1; i <= 100000; i++) {
+            histogram.record(i * 1000);
+        }
+
+        assertNear(50_000_000L, histogram.getPercentile(50));
+        assertNear(99_000_000L, histogram.getPercentile(99));
+        assertNear(99_900_000L, histogram.getPercentile(99.9));
+        assertEquals(100_000_000L, histogram.getPercentile(100));
+        assertEquals(100_000_000L, histogram.getMax());
+        assertEquals(100000, histogram.getCount());
+    }
+
+    @Test
+    public void negativeTimesCountAsZero() {
+        Histogram histogram = new Histogram("negative");
+        histogram.record(-5);
+
+        assertEquals(1, histogram.getCount());
+        assertEquals(0, histogram.getPercentile(100));
+    }
+
+    @Test
+    public void everyValueIsInsideItsBucket() {
+        long[] values = {0, 1, 31, 32, 63, 64, 65, 1000, 123456789, Long.MAX_VALUE / 3, Long.MAX_VALUE};
+        int previous = -1;
+        for (long value : values) {
+            int index = Histogram.index(value);
+            assertTrue("Bucket of " + value, index >= previous);
+            assertTrue("Highest of " + value, Histogram.highest(index) >= value);
+            assertTrue("Width of " + value, Histogram.highest(index) - value <= value / 32);
+            previous = index;
+        }
+        assertEquals(Long.MAX_VALUE, Histogram.highest(Histogram.index(Long.MAX_VALUE)));
+    }
+
+    private static void assertNear(long expected, long actual) {
+        assertTrue("Expected about " + expected + " but was " + actual,
+                Math.abs(actual - expected) <= expected * 3 / 100);
+    }
+}
@@ -0,0 +1,130 @@
+package service;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.util.Arrays;
+import message.Message;
+import message.ResponseRequest;
+import models.Privilege;
+import models.User;
+import org.junit.Test;
+
+/**
+ * Tests of the frames of the binary codec.
+ *
+ * @author Irati
+ */
+public class BinaryCodecTest {
+
+    @Test
+    public void roundTripKeepsEveryField() throws IOException {
+        User user = new User();
+        user.setEmail("ana@example.com");
+        user.setPassword("secret");
+        user.setName("Ana Ñúñez");
+        user.setStreet("Calle, 1");
+        user.setZip("48001");
+        user.setCity("Bilbao");
+        user.setPrivilege(Privilege.ADMIN);
+        ResponseRequest read = roundTrip(request(Message.SIGNUP, user));
+
+        assertEquals(Message.SIGNUP, read.getMessage());
+        assertEquals("ana@example.com", read.getUser().getEmail());
+        assertEquals("secret", read.getUser().getPassword());
+        assertEquals("Ana Ñúñez", read.getUser().getName());
+        assertEquals("Calle, 1", read.getUser().getStreet());
+        assertEquals("48001", read.getUser().getZip());
+        assertEquals("Bilbao", read.getUser().getCity());
+        assertEquals(Privilege.ADMIN, read.getUser().getPrivilege());
+    }
+
+    @Test
+    public void roundTripKeepsNulls() throws IOException {
+        User user = new User();
+        user.setEmail("ana@example.com");
+        ResponseRequest read = roundTrip(request(Message.SIGNIN, user));
+
+        assertEquals("ana@example.com", read.getUser().getEmail());
+        assertNull(read.getUser().getPassword());
+        assertNull(read.getUser().getCity());
+        assertNull(read.getUser().getPrivilege());
+
+        read = roundTrip(request(null, null));
+        assertNull(read.getMessage());
+        assertNull(read.getUser());
+    }
+
+    @Test
+    public void encodeWritesThePayloadLength() throws IOException {
+        byte[] frame = BinaryCodec.encode(request(Message.RESPONSE_OK, null));
+
+        // Message and the byte without user
+        assertArrayEquals(new byte[]{0, 0, 0, 2}, Arrays.copyOf(frame, 4));
+        assertEquals(6, frame.length);
+    }
+
+    @Test
+    public void readRefusesBadLengths() throws IOException {
+        for (int length : new int[]{0, -1, BinaryCodec.MAX_FRAME_BYTES + 1}) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            new DataOutputStream(bytes).writeInt(length);
+            try {
+                codec(bytes.toByteArray()).read();
+                fail("Length " + length + " accepted");
+            } catch (StreamCorruptedException ex) {
+                // Expected
+            }
+        }
+    }
+
+    @Test
+    public void decodeRefusesUnknownEnums() throws IOException {
+        assertCorrupted(new byte[]{(byte) Message.values().length, 0});
+        assertCorrupted(new byte[]{-2, 0});
+        byte[] frame = BinaryCodec.encode(request(Message.SIGNIN, new User()));
+        // The privilege is the last byte
+        frame[frame.length - 1] = (byte) Privilege.values().length;
+        assertCorrupted(Arrays.copyOfRange(frame, 4, frame.length));
+        frame[frame.length - 1] = -2;
+        assertCorrupted(Arrays.copyOfRange(frame, 4, frame.length));
+    }
+
+    @Test(expected = EOFException.class)
+    public void decodeRefusesCutPayloads() throws IOException {
+        byte[] frame = BinaryCodec.encode(request(Message.SIGNIN, new User()));
+        BinaryCodec.decode(frame, 4, frame.length - 5);
+    }
+
+    private static ResponseRequest request(Message message, User user) {
+        ResponseRequest request = new ResponseRequest();
+        request.setMessage(message);
+        request.setUser(user);
+        return request;
+    }
+
+    private static ResponseRequest roundTrip(ResponseRequest request) throws IOException {
+        return codec(BinaryCodec.encode(request)).read();
+    }
+
+    private static BinaryCodec codec(byte[] input) {
+        return new BinaryCodec(new ByteArrayInputStream(input), new ByteArrayOutputStream());
+    }
+
+    private static void assertCorrupted(byte[] payload) throws IOException {
+        try {
+            BinaryCodec.decode(payload, 0, payload.length);
+            fail("Payload " + Arrays.toString(payload) + " accepted");
+        } catch (StreamCorruptedException ex) {
+            // Expected
+        }
+    }
+}
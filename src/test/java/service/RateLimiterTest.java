@@ -0,0 +1,104 @@
+package service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+/**
+ * Tests of the token buckets of the rate limiter, with a clock moved by hand.
+ *
+ * @author Irati
+ */
+public class RateLimiterTest {
+
+    private static final long INTERVAL = TimeUnit.MILLISECONDS.toNanos(100);
+    private static final long HOUR = TimeUnit.HOURS.toMillis(1);
+    private long now;
+
+    /**
+     * 10 requests per second and bursts of 5.
+     */
+    private RateLimiter limiter(int maxEntries) {
+        return new RateLimiter("TEST", 10, 5, maxEntries, HOUR, () -> now);
+    }
+
+    @Test
+    public void burstIsAcceptedAndThenRejected() {
+        RateLimiter limiter = limiter(100);
+
+        assertEquals(5, acquired(limiter, "a", 10));
+        assertEquals(5, limiter.getRejectedCount());
+    }
+
+    @Test
+    public void tokensComeBackAtTheRate() {
+        RateLimiter limiter = limiter(100);
+        acquired(limiter, "a", 5);
+
+        now += INTERVAL;
+        assertEquals(1, acquired(limiter, "a", 5));
+        now += 2 * INTERVAL + INTERVAL / 2;
+        assertEquals(2, acquired(limiter, "a", 5));
+        // A long idle time does not give more than the burst
+        now += TimeUnit.MINUTES.toNanos(10);
+        assertEquals(5, acquired(limiter, "a", 10));
+    }
+
+    @Test
+    public void everyKeyHasItsOwnBucket() {
+        RateLimiter limiter = limiter(100);
+
+        assertEquals(5, acquired(limiter, "a", 10));
+        assertEquals(5, acquired(limiter, "b", 10));
+        assertEquals(2, limiter.size());
+        assertTrue(limiter.tryAcquire(null));
+    }
+
+    @Test
+    public void keysOverTheLimitShareOverflowBuckets() {
+        RateLimiter limiter = limiter(1);
+        acquired(limiter, 0, 1);
+
+        // 1 and 65 fall in the same one of the 64 overflow buckets
+        assertEquals(3, acquired(limiter, 1, 3));
+        assertEquals(2, acquired(limiter, 65, 5));
+        assertEquals(5, acquired(limiter, 2, 10));
+        assertEquals(1, limiter.size());
+    }
+
+    @Test
+    public void overflowBucketsStartFullWithANegativeClock() {
+        now = Long.MIN_VALUE / 2;
+        RateLimiter limiter = limiter(0);
+
+        assertEquals(5, acquired(limiter, "a", 10));
+    }
+
+    @Test
+    public void clockCanWrapAround() {
+        now = Long.MAX_VALUE - INTERVAL;
+        RateLimiter limiter = limiter(100);
+        assertEquals(5, acquired(limiter, "a", 10));
+        assertEquals(5, acquired(limiter, 1, 10));
+
+        now += 3 * INTERVAL;
+        assertEquals(3, acquired(limiter, "a", 10));
+        assertEquals(0, acquired(limiter, "a", 10));
+        now += TimeUnit.MINUTES.toNanos(1);
+        assertEquals(5, acquired(limiter, "a", 10));
+        assertFalse(limiter.tryAcquire("a"));
+    }
+
+    private static int acquired(RateLimiter limiter, Object key, int requests) {
+        int acquired = 0;
+        for (int i = 0; i < requests; i++) {
+            if (limiter.tryAcquire(key)) {
+                acquired++;
+            }
+        }
+        return acquired;
+    }
+}